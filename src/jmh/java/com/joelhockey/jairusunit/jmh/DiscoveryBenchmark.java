@@ -0,0 +1,117 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit.jmh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestSuite;
+
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joelhockey.jairusunit.JairusUnit;
+import com.joelhockey.jairusunit.JairusUnitContextFactory;
+import com.joelhockey.jairusunit.JairusUnitScope;
+
+/**
+ * Cost of {@link JairusUnit#jairusunitTestSuite(String, JairusUnitScope)}
+ * loading a generated test file and building its suite.  Half of the tests
+ * are global functions and half are methods defined by 'Test' constructors
+ * with 10 tests each.  Each invocation uses a new child of a shared scope so
+ * that only loading and discovery are measured.
+ * @author Joel Hockey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int tests;
+
+    private JairusUnitScope shared;
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        JairusUnitContextFactory.initGlobal();
+        Context.enter();
+        shared = JairusUnitScope.createSharedScope(new ArrayList<String>());
+        file = File.createTempFile("discoverytest", ".js");
+        // tests are created in loops as Rhino can't compile a script with
+        // thousands of function literals, discovery sees the same globals
+        int globals = tests / 2;
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.print("for (var i = 0; i < " + globals + "; i++) {\n"
+                    + "    this['test' + i] = function() { assertEquals(1, 1); };\n"
+                    + "}\n"
+                    + "for (var i = " + globals + "; i < " + tests + "; i += 10) {\n"
+                    + "    var suite = function() {};\n"
+                    + "    suite.prototype.setUp = function() { this.x = 1; };\n"
+                    + "    for (var j = i; j < Math.min(i + 10, " + tests + "); j++) {\n"
+                    + "        suite.prototype['test' + j] = function() { assertEquals(1, this.x); };\n"
+                    + "    }\n"
+                    + "    this['Suite' + i + 'Test'] = suite;\n"
+                    + "}\n");
+        } finally {
+            out.close();
+        }
+        TestSuite suite = JairusUnit.jairusunitTestSuite(file.getPath(), shared);
+        if (suite.countTestCases() != tests) {
+            throw new IllegalStateException("Expected " + tests + " tests, found " + suite.countTestCases());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        Context.exit();
+    }
+
+    @Benchmark
+    public TestSuite discover() {
+        return JairusUnit.jairusunitTestSuite(file.getPath(), shared);
+    }
+}
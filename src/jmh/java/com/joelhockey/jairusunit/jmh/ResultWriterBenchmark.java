@@ -0,0 +1,112 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joelhockey.jairusunit.JairusUnitContextFactory;
+import com.joelhockey.jairusunit.JairusUnitResultWriter;
+
+/**
+ * Cost of {@link JairusUnitResultWriter#endTestSuite(String)} writing the
+ * summary, plain and xml reports for a suite where every test failed with
+ * an assertion from 20 javascript calls deep.  Reports are written to
+ * streams which discard output so that only formatting is measured.
+ * @author Joel Hockey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultWriterBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int failures;
+
+    private TestCase[] tests;
+    private AssertionFailedError error;
+    private PrintStream nul = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    });
+    private JairusUnitResultWriter writer;
+
+    @Setup
+    public void setUp() {
+        JairusUnitContextFactory.initGlobal();
+        Context.enter();
+        error = StackTraceBenchmark.deepError(20);
+        tests = new TestCase[failures];
+        for (int i = 0; i < failures; i++) {
+            tests[i] = new TestCase("test" + i) {};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Setup(Level.Invocation)
+    public void record() {
+        writer = new JairusUnitResultWriter(nul, nul, nul);
+        writer.startTestSuite("resultwritertest");
+        for (TestCase test : tests) {
+            writer.startTest(test);
+            writer.addFailure(test, error);
+            writer.endTest(test);
+        }
+    }
+
+    @Benchmark
+    public JairusUnitResultWriter endTestSuite() {
+        writer.endTestSuite("resultwritertest");
+        return writer;
+    }
+}
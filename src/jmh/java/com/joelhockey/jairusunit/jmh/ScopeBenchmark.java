@@ -0,0 +1,92 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit.jmh;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joelhockey.jairusunit.JairusUnitContextFactory;
+import com.joelhockey.jairusunit.JairusUnitScope;
+
+/**
+ * Cost of creating the scope for each test file.  Measures a full scope
+ * with standard objects, a child of a sealed shared scope as used with
+ * 'sharedscope', and loading 'jairusunit.js' into a new scope.  Scripts
+ * are compiled once and then served from the script cache, as they are
+ * for all files after the first in a run.
+ * @author Joel Hockey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScopeBenchmark {
+    private JairusUnitScope shared;
+
+    @Setup
+    public void setUp() throws Exception {
+        JairusUnitContextFactory.initGlobal();
+        Context.enter();
+        shared = JairusUnitScope.createSharedScope(new ArrayList<String>());
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public JairusUnitScope newScope() {
+        return new JairusUnitScope();
+    }
+
+    @Benchmark
+    public JairusUnitScope newChildScope() {
+        return new JairusUnitScope(shared);
+    }
+
+    @Benchmark
+    public JairusUnitScope loadJairusUnit() throws Exception {
+        JairusUnitScope scope = new JairusUnitScope();
+        scope.load("jairusunit.js");
+        return scope;
+    }
+}
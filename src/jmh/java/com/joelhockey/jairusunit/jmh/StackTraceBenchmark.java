@@ -0,0 +1,108 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.AssertionFailedError;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeJavaObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joelhockey.jairusunit.JairusUnit;
+import com.joelhockey.jairusunit.JairusUnitContextFactory;
+import com.joelhockey.jairusunit.JairusUnitScope;
+
+/**
+ * Cost of {@link JairusUnit#filterStackTrace(Throwable)} for an assertion
+ * failure created at the bottom of a recursive javascript function, giving
+ * a stack with several Rhino frames for each javascript call.
+ * @author Joel Hockey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackTraceBenchmark {
+    @Param({"10", "100", "500"})
+    public int depth;
+
+    private AssertionFailedError error;
+
+    @Setup
+    public void setUp() {
+        JairusUnitContextFactory.initGlobal();
+        Context.enter();
+        error = deepError(depth);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public String filterStackTrace() {
+        return JairusUnit.filterStackTrace(error);
+    }
+
+    /**
+     * Create assertion failure from javascript called recursively.
+     * @param depth number of nested javascript calls
+     * @return assertion failure with deep stack
+     */
+    static AssertionFailedError deepError(int depth) {
+        Context cx = Context.enter();
+        try {
+            JairusUnitScope scope = new JairusUnitScope();
+            Object result = cx.evaluateString(scope,
+                    "function deep(n) {\n"
+                    + "    if (n === 0) {\n"
+                    + "        return new Packages.junit.framework.AssertionFailedError('expected:<1> but was:<2>');\n"
+                    + "    }\n"
+                    + "    return deep(n - 1);\n"
+                    + "}\n"
+                    + "deep(" + depth + ");\n", "deeptest.js", 1, null);
+            return (AssertionFailedError) ((NativeJavaObject) result).unwrap();
+        } finally {
+            Context.exit();
+        }
+    }
+}
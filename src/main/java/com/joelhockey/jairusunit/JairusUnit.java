@@ -24,11 +24,27 @@
 
 package com.joelhockey.jairusunit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
@@ -37,13 +53,13 @@ import junit.framework.TestCase;
 import junit.framework.TestResult;
 import junit.framework.TestSuite;
 
-import org.mozilla.javascript.ClassCache;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.ContextFactory;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
 import org.mozilla.javascript.NativeJavaObject;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.tools.debugger.Main;
 
 /**
@@ -54,6 +70,7 @@ public class JairusUnit {
     public static final int SUCCESS_EXIT = 0;
     public static final int FAILURE_EXIT = 1;
     public static final int EXCEPTION_EXIT = 2;
+    public static final int DEFAULT_SLOWEST = 10;
 
     public static final Pattern STACK_TRACE_FILTER = Pattern.compile(
             "^\tat (" +
@@ -65,6 +82,29 @@ public class JairusUnit {
             ")"
     );
 
+    // sealed scope shared by all files if '-sharedscope' or '-preload' used
+    private static JairusUnitScope sharedScope;
+    // write reports as each test finishes if '-streaming' used
+    private static boolean streaming;
+    // run benchmarks rather than tests if '-bench' used
+    private static boolean bench;
+    private static File benchBaseline;
+    // millis, 0 for none, set by '-testtimeout' and '-filetimeout'
+    private static long testTimeout;
+    private static long fileTimeout;
+    // separate jndi namespace for each file if '-jndinamespaces' used
+    private static boolean jndiNamespaces;
+    // durations of tests and files if '-timings' used
+    private static JairusUnitTimings timings;
+    // manifest for each todir if '-incremental' used
+    private static Map<String, JairusUnitManifest> manifests;
+    // pool to run suites within each file if '-suitethreads' used
+    private static ExecutorService suitePool;
+    // shared scope kept between runs in daemon
+    private static JairusUnitScope lastSharedScope;
+    private static List<String> lastPreloads;
+    private static List<Long> lastSharedScopeModified;
+
     /**
      * Return JUnit {@link TestSuite} containing all
      * tests from given js file.
@@ -72,24 +112,57 @@ public class JairusUnit {
      * @return test suite
      */
     public static TestSuite jairusunitTestSuite(String file) {
+        return jairusunitTestSuite(file, null);
+    }
+
+    /**
+     * Return JUnit {@link TestSuite} containing all
+     * tests from given js file.
+     * @param file javascript file containing tests
+     * @param shared optional sealed scope with 'jairusunit.js' already loaded
+     * created with {@link JairusUnitScope#createSharedScope(List)}, if null
+     * a new scope is created and 'jairusunit.js' is loaded into it
+     * @return test suite
+     */
+    public static TestSuite jairusunitTestSuite(String file, JairusUnitScope shared) {
+        long start = JairusUnitMetrics.start();
+        JairusUnitScope scope = shared != null ? new JairusUnitScope(shared) : new JairusUnitScope();
+        JairusUnitMetrics.record(JairusUnitMetrics.SCOPE, start);
+        return jairusunitTestSuite(scope, file, false);
+    }
+
+    /**
+     * Return JUnit {@link TestSuite} containing all
+     * tests from given js file loaded into given scope.
+     * @param scope scope to load file into, 'jairusunit.js' is loaded
+     * unless it is already available from a shared scope
+     * @param file javascript file containing tests
+     * @param bench if true, find 'bench' methods and 'Bench' suites rather
+     * than 'test' and 'Test', see {@link JairusUnitBenchmark}
+     * @return test suite
+     */
+    public static TestSuite jairusunitTestSuite(JairusUnitScope scope, String file, boolean bench) {
         TestSuite result = new TestSuite("jairusunit");
         Context cx = Context.enter();
         try {
-            JairusUnitScope scope = new JairusUnitScope();
-
-            // must stop Rhino from caching adaptor classes
-            // to allow multiple test methods on same generated class
-            ClassCache.get(scope).setCachingEnabled(false);
             try {
-                scope.load("jairusunit.js");
-                Function jairusunitTestSuite = (Function) scope.get("jairusunitTestSuite", scope);
+                if (!ScriptableObject.hasProperty(scope, "jairusunitTestSuite")) {
+                    scope.load(JairusUnitScope.CLASSPATH + "jairusunit.js");
+                }
+                // discovery includes loading file
+                long start = JairusUnitMetrics.start();
+                Function jairusunitTestSuite = (Function) ScriptableObject.getProperty(scope, "jairusunitTestSuite");
                 NativeJavaObject obj = (NativeJavaObject) jairusunitTestSuite.call(
-                        cx, scope, jairusunitTestSuite, new Object[] {file});
+                        cx, scope, scope, new Object[] {file, bench});
+                JairusUnitMetrics.record(JairusUnitMetrics.DISCOVERY, start);
                 TestSuite suite = (TestSuite) obj.unwrap();
                 result.addTest(suite);
             } catch (Exception e) {
                 String msg = JairusUnit.dumpError("Error loading jairusunit.js", e);
                 result.addTest(JairusUnit.warning(msg));
+            } catch (JairusUnitContextFactory.TimeoutError te) {
+                String msg = JairusUnit.dumpError("Error loading javascript file: " + file, te);
+                result.addTest(JairusUnit.warning(msg));
             }
         } finally {
             Context.exit();
@@ -157,12 +230,14 @@ public class JairusUnit {
     }
 
     /**
-     * Return stacktrace string with uninteresting lines removed.
+     * Return stacktrace string with uninteresting frames removed,
+     * see {@link JairusUnitStackTrace}.
      * @param t throwable
-     * @return stacktrace string with uninteresting lines removed
+     * @return stacktrace string with uninteresting frames removed
      */
     public static String filterStackTrace(Throwable t) {
-        return filterStackTrace(dumpStackTrace(t));
+        if (t == null) { return null; }
+        return new JairusUnitStackTrace(t).toString();
     }
     /**
      * Return stacktrace string with uninteresting lines removed.
@@ -185,9 +260,86 @@ public class JairusUnit {
      * at any position within files.  todir option gives directory to write
      * junit-style 'plain' and 'xml' reports, default todir is 'target/surefire-reports'.
      * basedir gives base directory for given filenames, default basedir is '/'.
+     * Optional '-threads &lt;n>' runs files in parallel using n worker threads,
+     * default is 1 which runs all files on the main thread.
+     * Optional '-sharedscope' evaluates standard objects and 'jairusunit.js' once
+     * into a sealed scope which is the prototype of each file's scope.  Optional
+     * '-preload &lt;file>' (may be repeated) loads libraries into the shared scope
+     * and implies '-sharedscope'.  Optional '-cachedir &lt;dir>' stores compiled
+     * script classes on disk to be reused by later runs.  Optional '-streaming'
+     * writes each test to the reports as soon as it finishes.  Optional
+     * '-properties suite|once|file' controls system properties in xml reports,
+     * 'suite' (default) writes current properties into each report, 'once'
+     * renders them once and reuses them, 'file' leaves them out and writes
+     * them once to 'jairusunit-properties.xml' in each todir.  Optional
+     * '-metrics &lt;file>' writes phase timings and counters at the end of the run
+     * as Prometheus text if file ends with '.prom' or '.txt', else JSON.
+     * Optional '-incremental' records the files each test file loads or reads
+     * in '{@value JairusUnitManifest#FILENAME}' in each todir and skips test
+     * files whose dependencies are unchanged, keeping their previous reports
+     * and result.
+     * Optional '-coverage' records line coverage of loaded scripts and
+     * writes lcov and Cobertura reports to each todir, see
+     * {@link JairusUnitCoverage}.  '-coverageinclude &lt;regex>' implies
+     * '-coverage' and only covers scripts whose url matches, and
+     * '-coveragemerge' adds to existing reports rather than replacing them.
+     * Optional '-profile' samples the javascript stack of each test file
+     * every '-profileinterval &lt;millis>' (default
+     * {@value JairusUnitProfiler#DEFAULT_INTERVAL}), writes collapsed stacks
+     * to 'PROFILE-&lt;name>.txt' in todir and prints the top '-slowest &lt;n>'
+     * functions by self and total time, see {@link JairusUnitProfiler}.
+     * Optional '-optlevel &lt;level>' compiles loaded scripts at Rhino
+     * optimization level -1 (interpreted) to 9, or 'adaptive' chooses
+     * interpreted or compiled for each script from its size and load count.
+     * '-optpath &lt;regex>=&lt;level>' (may be repeated) overrides the level
+     * for scripts whose url matches, and '-optstats &lt;file>' keeps load
+     * counts between runs for adaptive mode.  Levels and compile times of
+     * the '-slowest &lt;n>' scripts to compile are printed at the end of the
+     * run, see {@link JairusUnitOptimization}.
+     * Optional '-jndinamespaces' gives each file its own jndi namespace
+     * so that files running in parallel do not see each other's bindings,
+     * see {@link JairusUnitInitialContextFactory}.
+     * Optional '-timings &lt;file>' records the duration of each test and
+     * file in file, see {@link JairusUnitTimings}, and prints the slowest
+     * '-slowest &lt;n>' (default {@value #DEFAULT_SLOWEST}) tests and files.
+     * Optional '-slowratio &lt;ratio>' prints tests which took more than
+     * ratio times as long as in the previous run, and '-failonslow' fails
+     * the run if there are any.
+     * Optional '-maxframes &lt;n>' limits the frames shown in the stack
+     * trace of each failure, see {@link JairusUnitStackTrace}.
+     * Optional '-searchpath &lt;entry>' (may be repeated) gives the
+     * directories and 'classpath:&lt;prefix>' locations searched in order by
+     * 'load' and 'readFile', see {@link JairusUnitScope#resolve(String)}.
+     * Optional '-readcache &lt;size>' caches the contents returned by
+     * 'readFile' up to size bytes (suffix 'k', 'm' or 'g' allowed) shared by
+     * all files and threads, see {@link JairusUnitReadCache}.
+     * Optional '-suitethreads &lt;n>' runs the 'Test' suites within each file
+     * concurrently using n worker threads, see {@link JairusUnitParallelSuite}.
+     * Files which set global 'jairusunitSerial = true' always run serially.
+     * Optional '-testtimeout &lt;millis>' aborts any test which runs longer
+     * and records it as an error, and '-filetimeout &lt;millis>' does the same
+     * for all tests remaining once a file has run for longer, see
+     * {@link JsFunctionTestCase#runBare()}.
+     * Optional '-bench' runs 'bench*' methods as benchmarks rather than
+     * running tests, see {@link JairusUnitBenchmark}.  Results are written
+     * to 'BENCH-&lt;name>.json' with plain and xml reports as 'BENCH-&lt;name>.txt'
+     * and '.xml' in todir.  '-benchwarmup &lt;n>', '-benchiterations &lt;n>'
+     * and '-benchtime &lt;millis>' set warmup and measurement iterations and
+     * the time for each.  '-benchbaseline &lt;dir>' compares against json
+     * from a previous run in dir and fails benchmarks which are slower by more
+     * than '-benchthreshold &lt;percent>'.
+     * Optional '-daemon &lt;port>' starts a long-lived daemon listening on
+     * the loopback interface which runs requests from {@link JairusUnitTask}
+     * with warm Rhino classes, script cache and shared scope, and only
+     * accepts requests with the token in
+     * {@link JairusUnitDaemon#tokenFile(int)}.  Optional
+     * '-idletimeout &lt;seconds>' sets how long the daemon waits for a
+     * request before exiting.
      * @param args js files
      */
     public static void main(String[] args) {
+        JairusUnitContextFactory.initGlobal();
+
         // start debugger if -Ddebugjs
         if (System.getProperty("debugjs") != null) {
             Main main = new Main("JairusUnit Debug");
@@ -197,6 +349,33 @@ public class JairusUnit {
             main.setVisible(true);
         }
 
+        if (args.length > 0 && "-daemon".equals(args[0])) {
+            int port = Integer.parseInt(args[1]);
+            int idleTimeout = JairusUnitDaemon.DEFAULT_IDLE_TIMEOUT;
+            if (args.length > 3 && "-idletimeout".equals(args[2])) {
+                idleTimeout = Integer.parseInt(args[3]);
+            }
+            try {
+                new JairusUnitDaemon(port, idleTimeout).serve();
+                System.exit(SUCCESS_EXIT);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(EXCEPTION_EXIT);
+            }
+        }
+        System.exit(run(args, System.out));
+    }
+
+    /**
+     * Run tests.  Options are the same as {@link #main(String[])}.  Settings
+     * from any previous run are reset, but compiled scripts and the shared
+     * scope are reused if their files are unchanged.
+     * @param args js files and options
+     * @param out stream to write summary
+     * @return {@link #SUCCESS_EXIT}, {@link #FAILURE_EXIT} or
+     * {@link #EXCEPTION_EXIT}
+     */
+    public static int run(String[] args, PrintStream out) {
         // enter context here to ensure only single context used for whole test
         // this helps debugger and tests, and means that any change to the
         // ContextFactory will not take effect
@@ -204,8 +383,43 @@ public class JairusUnit {
         boolean failure = false;
         String todir = "target/surefire-reports";
         String basedir = "";
+        int threads = 1;
+        int suiteThreads = 1;
+        boolean useSharedScope = false;
+        String propertiesMode = JairusUnitResultWriter.PROPERTIES_SUITE;
+        File metrics = null;
+        boolean incremental = false;
+        boolean coverage = false;
+        String coverageInclude = null;
+        boolean coverageMerge = false;
+        boolean profile = false;
+        long profileInterval = JairusUnitProfiler.DEFAULT_INTERVAL;
+        long readCache = 0;
+        int maxFrames = 0;
+        File timingsFile = null;
+        int slowest = DEFAULT_SLOWEST;
+        double slowRatio = 0;
+        boolean failOnSlow = false;
+        List<String> searchPath = new ArrayList<String>();
+        List<String> preloads = new ArrayList<String>();
+        List<String[]> files = new ArrayList<String[]>();
         int i = 0;
         try {
+            // reset settings from previous run
+            streaming = false;
+            bench = false;
+            benchBaseline = null;
+            JairusUnitBenchmark.reset();
+            testTimeout = 0;
+            fileTimeout = 0;
+            manifests = null;
+            timings = null;
+            jndiNamespaces = false;
+            JairusUnitScriptCache.setCacheDir(null);
+            JairusUnitOptimization.reset();
+            JairusUnitResultWriter.setPropertiesMode(propertiesMode);
+            JairusUnitMetrics.reset();
+
             while (i < args.length) {
                 String arg = args[i++];
                 if ("-todir".equals(arg)) {
@@ -218,33 +432,430 @@ public class JairusUnit {
                 } else if ("-basedir".equals(arg)) {
                     basedir = args[i++];
                     continue;
+                } else if ("-threads".equals(arg)) {
+                    threads = Integer.parseInt(args[i++]);
+                    continue;
+                } else if ("-suitethreads".equals(arg)) {
+                    suiteThreads = Integer.parseInt(args[i++]);
+                    continue;
+                } else if ("-bench".equals(arg)) {
+                    bench = true;
+                    continue;
+                } else if ("-benchwarmup".equals(arg)) {
+                    JairusUnitBenchmark.setWarmupIterations(Integer.parseInt(args[i++]));
+                    continue;
+                } else if ("-benchiterations".equals(arg)) {
+                    JairusUnitBenchmark.setIterations(Integer.parseInt(args[i++]));
+                    continue;
+                } else if ("-benchtime".equals(arg)) {
+                    JairusUnitBenchmark.setBatchMillis(Long.parseLong(args[i++]));
+                    continue;
+                } else if ("-benchbaseline".equals(arg)) {
+                    benchBaseline = new File(args[i++]);
+                    continue;
+                } else if ("-benchthreshold".equals(arg)) {
+                    JairusUnitBenchmark.setThreshold(Double.parseDouble(args[i++]));
+                    continue;
+                } else if ("-testtimeout".equals(arg)) {
+                    testTimeout = Long.parseLong(args[i++]);
+                    continue;
+                } else if ("-filetimeout".equals(arg)) {
+                    fileTimeout = Long.parseLong(args[i++]);
+                    continue;
+                } else if ("-sharedscope".equals(arg)) {
+                    useSharedScope = true;
+                    continue;
+                } else if ("-cachedir".equals(arg)) {
+                    JairusUnitScriptCache.setCacheDir(new File(args[i++]));
+                    continue;
+                } else if ("-timings".equals(arg)) {
+                    timingsFile = new File(args[i++]);
+                    continue;
+                } else if ("-slowest".equals(arg)) {
+                    slowest = Integer.parseInt(args[i++]);
+                    continue;
+                } else if ("-slowratio".equals(arg)) {
+                    slowRatio = Double.parseDouble(args[i++]);
+                    continue;
+                } else if ("-failonslow".equals(arg)) {
+                    failOnSlow = true;
+                    continue;
+                } else if ("-maxframes".equals(arg)) {
+                    maxFrames = Integer.parseInt(args[i++]);
+                    continue;
+                } else if ("-searchpath".equals(arg)) {
+                    searchPath.add(args[i++]);
+                    continue;
+                } else if ("-readcache".equals(arg)) {
+                    readCache = JairusUnitReadCache.parseSize(args[i++]);
+                    continue;
+                } else if ("-streaming".equals(arg)) {
+                    streaming = true;
+                    continue;
+                } else if ("-properties".equals(arg)) {
+                    propertiesMode = args[i++];
+                    JairusUnitResultWriter.setPropertiesMode(propertiesMode);
+                    continue;
+                } else if ("-coverage".equals(arg)) {
+                    coverage = true;
+                    continue;
+                } else if ("-coverageinclude".equals(arg)) {
+                    coverage = true;
+                    coverageInclude = args[i++];
+                    continue;
+                } else if ("-coveragemerge".equals(arg)) {
+                    coverageMerge = true;
+                    continue;
+                } else if ("-profile".equals(arg)) {
+                    profile = true;
+                    continue;
+                } else if ("-profileinterval".equals(arg)) {
+                    profileInterval = Long.parseLong(args[i++]);
+                    continue;
+                } else if ("-optlevel".equals(arg)) {
+                    JairusUnitOptimization.setLevel(args[i++]);
+                    continue;
+                } else if ("-optpath".equals(arg)) {
+                    JairusUnitOptimization.addPath(args[i++]);
+                    continue;
+                } else if ("-optstats".equals(arg)) {
+                    JairusUnitOptimization.setStatsFile(new File(args[i++]));
+                    continue;
+                } else if ("-jndinamespaces".equals(arg)) {
+                    jndiNamespaces = true;
+                    continue;
+                } else if ("-incremental".equals(arg)) {
+                    incremental = true;
+                    continue;
+                } else if ("-metrics".equals(arg)) {
+                    metrics = new File(args[i++]);
+                    continue;
+                } else if ("-preload".equals(arg)) {
+                    useSharedScope = true;
+                    preloads.add(args[i++]);
+                    continue;
+                }
+                files.add(new String[] {basedir, arg, todir});
+            }
+
+            if (JairusUnitResultWriter.PROPERTIES_FILE.equals(propertiesMode)) {
+                Set<String> todirs = new HashSet<String>();
+                for (String[] file : files) {
+                    if (todirs.add(file[2])) {
+                        JairusUnitResultWriter.writePropertiesFile(new File(file[2], "jairusunit-properties.xml"));
+                    }
+                }
+            }
+
+            // benchmarks are always run
+            if (incremental && !bench) {
+                manifests = new LinkedHashMap<String, JairusUnitManifest>();
+                for (String[] file : files) {
+                    if (!manifests.containsKey(file[2])) {
+                        manifests.put(file[2], new JairusUnitManifest(new File(file[2], JairusUnitManifest.FILENAME)));
+                    }
+                }
+            }
+
+            // benchmark durations are set by benchtime
+            if (timingsFile != null && !bench) {
+                timings = new JairusUnitTimings(timingsFile);
+            }
+
+            // scripts in shared scope must be compiled with coverage debugger
+            JairusUnitCoverage.setEnabled(coverage, coverageInclude);
+            JairusUnitProfiler.setEnabled(profile, profileInterval);
+            if (coverage || profile) {
+                lastSharedScope = null;
+            }
+            JairusUnitReadCache.setMaxBytes(readCache);
+            JairusUnitStackTrace.setMaxFrames(maxFrames);
+            JairusUnitScope.setSearchPath(searchPath.isEmpty() ? null : searchPath);
+            if (!searchPath.isEmpty()) {
+                // search path is not used for absolute files, so test files
+                // under a relative basedir are still found directly
+                for (String[] file : files) {
+                    if (file[0].length() > 0) {
+                        file[0] = new File(file[0]).getAbsolutePath();
+                    }
+                }
+            }
+            sharedScope = useSharedScope ? sharedScope(preloads) : null;
+            if (suiteThreads > 1) {
+                suitePool = Executors.newFixedThreadPool(suiteThreads);
+            }
+
+            if (threads <= 1) {
+                for (String[] file : files) {
+                    if (!runFile(file[0], file[1], file[2], out)) {
+                        failure = true;
+                    }
+                }
+            } else {
+                failure = !runFiles(files, threads, out);
+            }
+            if (manifests != null) {
+                for (JairusUnitManifest manifest : manifests.values()) {
+                    manifest.write();
                 }
-                // get suite using full filepath
-                TestSuite suite = jairusunitTestSuite(basedir + "/" + arg);
+            }
+            if (coverage) {
+                Set<String> todirs = new LinkedHashSet<String>();
+                for (String[] file : files) {
+                    todirs.add(file[2]);
+                }
+                JairusUnitCoverage.write(todirs, coverageMerge);
+            }
+            if (profile) {
+                JairusUnitProfiler.report(out, slowest);
+            }
+            if (JairusUnitOptimization.isEnabled()) {
+                JairusUnitOptimization.write();
+                JairusUnitOptimization.report(out, slowest);
+            }
+            if (timings != null) {
+                timings.write();
+                int slower = timings.report(out, slowest, slowRatio);
+                if (failOnSlow && slower > 0) {
+                    failure = true;
+                }
+            }
+            if (readCache > 0) {
+                out.println(String.format("Read cache: %d hits, %d misses, %d evictions, %d of %d bytes used",
+                        JairusUnitMetrics.get(JairusUnitMetrics.READ_CACHE_HITS),
+                        JairusUnitMetrics.get(JairusUnitMetrics.READ_CACHE_MISSES),
+                        JairusUnitMetrics.get(JairusUnitMetrics.READ_CACHE_EVICTIONS),
+                        JairusUnitReadCache.getBytes(), readCache));
+            }
+            if (metrics != null) {
+                JairusUnitMetrics.write(metrics);
+            }
+            return failure ? FAILURE_EXIT : SUCCESS_EXIT;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return EXCEPTION_EXIT;
+        } finally {
+            if (suitePool != null) {
+                suitePool.shutdownNow();
+                suitePool = null;
+            }
+            JairusUnitProfiler.setEnabled(false, 0);
+            Context.exit();
+        }
+    }
+
+    // reuse shared scope from previous run if preloads and their files are unchanged
+    private static synchronized JairusUnitScope sharedScope(List<String> preloads) throws IOException {
+        if (lastSharedScope == null || !preloads.equals(lastPreloads)
+                || !lastModified(lastSharedScope.getDependencies()).equals(lastSharedScopeModified)) {
+            lastSharedScope = JairusUnitScope.createSharedScope(preloads);
+            lastPreloads = new ArrayList<String>(preloads);
+            lastSharedScopeModified = lastModified(lastSharedScope.getDependencies());
+        }
+        return lastSharedScope;
+    }
+
+    // last-modified times of urls
+    private static List<Long> lastModified(Set<String> urls) throws IOException {
+        List<Long> result = new ArrayList<Long>();
+        for (String url : urls) {
+            result.add(JairusUnitScriptCache.lastModified(new URL(url)));
+        }
+        return result;
+    }
+
+    /**
+     * Run tests in js file and write plain and xml reports.
+     * @param basedir base directory for file
+     * @param file js file relative to basedir
+     * @param todir directory to write reports
+     * @param summary stream to write summary
+     * @return true if all tests were successful
+     * @throws IOException if error writing reports
+     */
+    public static boolean runFile(String basedir, String file, String todir, PrintStream summary) throws IOException {
+        long start = JairusUnitMetrics.start();
+        String path = basedir + "/" + file;
+
+        // we need to mimic java-style pkgname.classname style to make reports look nice
+        // strip '.js' suffix, exclude basedir, prefix with 'jairusunit.' and change slashes to dots
+        String testName = "jairusunit." + file.replaceAll("\\.js$", "").replaceAll("/|\\\\", ".");
+
+        // always write plain and xml reports - don't bother making people choose
+        String prefix = bench ? "/BENCH-" : "/TEST-";
+        File plainFile = new File(todir + prefix + testName + ".txt");
+        File xmlFile = new File(todir + prefix + testName + ".xml");
 
-                // we need to mimic java-style pkgname.classname style to make reports look nice
-                // strip '.js' suffix, exclude basedir, prefix with 'jairusunit.' and change slashes to dots
-                String testName = "jairusunit." + arg.replaceAll("\\.js$", "").replaceAll("/|\\\\", ".");
+        // skip if nothing changed since previous reports were written
+        JairusUnitManifest manifest = manifests != null ? manifests.get(todir) : null;
+        if (manifest != null && plainFile.exists() && xmlFile.exists()) {
+            Boolean previous = manifest.previousResult(path);
+            if (previous != null) {
+                summary.println("Running " + testName);
+                summary.println("Skipped, dependencies unchanged, previous run "
+                        + (previous ? "passed" : "failed"));
+                return previous;
+            }
+        }
+
+        // get suite using full filepath
+        long scopeStart = JairusUnitMetrics.start();
+        JairusUnitScope scope = sharedScope != null ? new JairusUnitScope(sharedScope) : new JairusUnitScope();
+        JairusUnitMetrics.record(JairusUnitMetrics.SCOPE, scopeStart);
+        scope.setTimeouts(testTimeout, fileTimeout);
+        // profile, jndi namespace and file deadline also apply to loading file
+        JairusUnitProfiler.setFile(testName);
+        if (jndiNamespaces) {
+            JairusUnitInitialContextFactory.setNamespace(testName);
+        }
+        TestSuite suite;
+        List<JairusUnitBenchmark> benchmarks = new ArrayList<JairusUnitBenchmark>();
+        PrintStream plain = null;
+        PrintStream xml = null;
+        JairusUnitResultWriter printer = null;
+        TestResult result = new TestResult();
+        long reportStart;
+        try {
+            try {
+                JairusUnitContextFactory.setDeadline(scope.getFileDeadline(), "File timed out after " + fileTimeout + "ms");
+                try {
+                    suite = jairusunitTestSuite(scope, path, bench);
+                } finally {
+                    JairusUnitContextFactory.clearDeadline();
+                }
 
-                // always write plain and xml reports - don't bother making people choose
-                PrintStream plain = new PrintStream(new FileOutputStream(todir + "/TEST-" + testName + ".txt"), true, "UTF-8");
-                PrintStream xml = new PrintStream(new FileOutputStream(todir + "/TEST-" + testName + ".xml"), true, "UTF-8");;
-                JairusUnitResultWriter printer = new JairusUnitResultWriter(System.out, plain, xml);
-                TestResult result = new TestResult();
+                if (bench) {
+                    // skip files without benchmarks
+                    if (suite.countTestCases() == 0) {
+                        return true;
+                    }
+                    JairusUnitBenchmark.find(suite, benchmarks);
+                    Map<String, Double> baseline = new HashMap<String, Double>();
+                    if (benchBaseline != null) {
+                        baseline = JairusUnitBenchmark.readBaseline(new File(benchBaseline, "BENCH-" + testName + ".json"));
+                    }
+                    for (JairusUnitBenchmark benchmark : benchmarks) {
+                        // key without basedir so baseline can come from another machine
+                        String className = benchmark.getClassName();
+                        if (className.startsWith(path + ".")) {
+                            className = className.substring(path.length() + 1);
+                        }
+                        benchmark.setKey(benchmark.getName() + "(" + className + ")");
+                        Double ops = baseline.get(benchmark.getKey());
+                        benchmark.setBaseline(ops != null ? ops : 0);
+                    }
+                }
+                if (streaming) {
+                    printer = new JairusUnitResultWriter(summary, plainFile, xmlFile);
+                } else {
+                    plain = new PrintStream(new FileOutputStream(plainFile), true, "UTF-8");
+                    xml = new PrintStream(new FileOutputStream(xmlFile), true, "UTF-8");
+                    printer = new JairusUnitResultWriter(summary, plain, xml);
+                }
                 result.addListener(printer);
+                if (timings != null) {
+                    result.addListener(timings.listener(testName, path));
+                }
                 printer.startTestSuite(testName);
-                suite.run(result);
-                printer.endTestSuite(testName);
+                if (suitePool != null && !Boolean.TRUE.equals(ScriptableObject.getProperty(scope, "jairusunitSerial"))) {
+                    new JairusUnitParallelSuite(suite, suitePool).run(result);
+                } else {
+                    suite.run(result);
+                }
+            } finally {
+                if (jndiNamespaces) {
+                    JairusUnitInitialContextFactory.setNamespace(null);
+                    JairusUnitInitialContextFactory.removeNamespace(testName);
+                }
+                JairusUnitProfiler.setFile(null);
+            }
+            JairusUnitProfiler.write(testName, new File(todir + "/PROFILE-" + testName + ".txt"));
+            reportStart = JairusUnitMetrics.start();
+            printer.endTestSuite(testName);
+        } finally {
+            // reports are closed even if running or writing the suite fails
+            if (plain != null) {
                 plain.close();
+            }
+            if (xml != null) {
                 xml.close();
-                if (!result.wasSuccessful()) {
-                    failure = true;
+            }
+            if (printer != null) {
+                printer.close();
+            }
+        }
+        if (bench) {
+            JairusUnitBenchmark.write(new File(todir + "/BENCH-" + testName + ".json"), benchmarks);
+            for (JairusUnitBenchmark benchmark : benchmarks) {
+                if (benchmark.getResult() != null) {
+                    summary.println("Bench " + benchmark.getResult());
                 }
             }
-            System.exit(failure ? FAILURE_EXIT : SUCCESS_EXIT);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(EXCEPTION_EXIT);
+        }
+        JairusUnitMetrics.record(JairusUnitMetrics.REPORT, reportStart);
+        if (manifest != null) {
+            // include test file even if it could not be loaded
+            Set<String> dependencies = scope.getDependencies();
+            dependencies.add(JairusUnitScope.toURL(new File(path)).toString());
+            manifest.record(path, result.wasSuccessful(), dependencies);
+        }
+        if (timings != null) {
+            timings.recordFile(testName, (System.nanoTime() - start) / 1000000);
+        }
+        JairusUnitMetrics.record(JairusUnitMetrics.FILE, start);
+        return result.wasSuccessful();
+    }
+
+    /**
+     * Run files in parallel using a pool of worker threads.  Each worker
+     * enters its own Rhino {@link Context} and each file gets its own
+     * {@link JairusUnitScope} and reports.  Summary output for each file is
+     * buffered and written to out in the original file order so that
+     * output from different files is not interleaved.
+     * @param files list of {basedir, file, todir}
+     * @param threads number of worker threads
+     * @param out stream to write summary
+     * @return true if all tests in all files were successful
+     * @throws Exception if error running any file
+     */
+    public static boolean runFiles(List<String[]> files, int threads, PrintStream out) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (final String[] file : files) {
+                results.add(pool.submit(new Callable<Object[]>() {
+                    public Object[] call() throws Exception {
+                        Context.enter();
+                        try {
+                            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                            PrintStream summary = new PrintStream(buf, true);
+                            boolean success = runFile(file[0], file[1], file[2], summary);
+                            summary.close();
+                            return new Object[] {success, buf.toByteArray()};
+                        } finally {
+                            Context.exit();
+                        }
+                    }
+                }));
+            }
+
+            boolean success = true;
+            for (Future<Object[]> future : results) {
+                Object[] result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException ee) {
+                    throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+                }
+                out.write((byte[]) result[1]);
+                out.flush();
+                if (!(Boolean) result[0]) {
+                    success = false;
+                }
+            }
+            return success;
+        } finally {
+            pool.shutdownNow();
         }
     }
 }
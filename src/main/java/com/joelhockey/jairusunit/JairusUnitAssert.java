@@ -0,0 +1,399 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import junit.framework.AssertionFailedError;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.FunctionObject;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * Assertion functions defined in each {@link JairusUnitScope}.  Each is a
+ * {@link FunctionObject} taking an optional message as first arg, the same
+ * as JUnit.  'assertEquals' compares with javascript '==' and
+ * 'assertSame' with '==='.
+ * <p>
+ * 'assertDeepEquals' compares arrays ({@link NativeArray} or java arrays)
+ * element by element and objects ({@link NativeObject}) by their own
+ * enumerable properties, recursing into nested arrays and objects.  Other
+ * values are compared with '==', except java objects which use
+ * {@link Object#equals(Object)} and dates which compare their time.
+ * Comparison stops at the first difference, and the failure message gives
+ * its path, e.g. 'expected:&lt;1> but was:&lt;2> at items[3].id'.  A pair of
+ * objects already being compared further up the path is treated as equal,
+ * so cyclic structures terminate.  On the passing path nothing is
+ * allocated except the property id arrays of objects.
+ * @author Joel Hockey
+ */
+public class JairusUnitAssert {
+    private static final String[] NAMES = {
+        "fail",
+        "assertEquals",
+        "assertTrue",
+        "assertNotNull",
+        "assertNull",
+        "assertSame",
+        "assertNotSame",
+        "assertMatches",
+        "assertDeepEquals",
+    };
+
+    // reused by each thread so that passing comparisons do not allocate
+    private static ThreadLocal<DeepEquals> deepEquals = new ThreadLocal<DeepEquals>();
+
+    /**
+     * Define assertion functions in scope.
+     * @param scope scope
+     */
+    public static void install(ScriptableObject scope) {
+        for (String name : NAMES) {
+            try {
+                Method method = JairusUnitAssert.class.getMethod(name,
+                        Context.class, Scriptable.class, Object[].class, Function.class);
+                scope.defineProperty(name, new FunctionObject(name, method, scope), ScriptableObject.DONTENUM);
+            } catch (NoSuchMethodException nsme) {
+                throw new RuntimeException(nsme);
+            }
+        }
+    }
+
+    /** fail([message]) */
+    public static Object fail(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        String message = args.length > 0 && args[0] != null ? ScriptRuntime.toString(args[0]) : null;
+        throw failure(funObj, new AssertionFailedError(message));
+    }
+
+    /** assertEquals([message,] expected, actual) using '==' */
+    public static Object assertEquals(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        int i = args.length <= 2 ? 0 : 1;
+        if (!ScriptRuntime.eq(arg(args, i), arg(args, i + 1))) {
+            throw failure(funObj, new AssertionFailedError(message(args, i) + "expected:<" + str(arg(args, i))
+                    + "> but was:<" + str(arg(args, i + 1)) + ">"));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertTrue([message,] condition) */
+    public static Object assertTrue(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        if (args.length == 1 && !ScriptRuntime.toBoolean(args[0])) {
+            throw failure(funObj, new AssertionFailedError());
+        } else if (args.length > 1 && !ScriptRuntime.toBoolean(args[1])) {
+            throw failure(funObj, new AssertionFailedError(str(args[0])));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertNotNull([message,] object) */
+    public static Object assertNotNull(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        if (args.length == 1 && args[0] == null) {
+            throw failure(funObj, new AssertionFailedError());
+        } else if (args.length > 1 && args[1] == null) {
+            throw failure(funObj, new AssertionFailedError(str(args[0])));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertNull([message,] object) */
+    public static Object assertNull(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        if (args.length == 1 && args[0] != null) {
+            throw failure(funObj, new AssertionFailedError());
+        } else if (args.length > 1 && args[1] != null) {
+            throw failure(funObj, new AssertionFailedError(str(args[0])));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertSame([message,] expected, actual) using '===' */
+    public static Object assertSame(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        int i = args.length <= 2 ? 0 : 1;
+        if (!ScriptRuntime.shallowEq(arg(args, i), arg(args, i + 1))) {
+            throw failure(funObj, new AssertionFailedError(message(args, i) + "expected same:<" + str(arg(args, i))
+                    + "> but was:<" + str(arg(args, i + 1)) + ">"));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertNotSame([message,] expected, actual) using '===' */
+    public static Object assertNotSame(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        int i = args.length <= 2 ? 0 : 1;
+        if (ScriptRuntime.shallowEq(arg(args, i), arg(args, i + 1))) {
+            throw failure(funObj, new AssertionFailedError(message(args, i) + "expected not same"));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertMatches([message,] regexp, actual) using regexp.test(actual) */
+    public static Object assertMatches(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        int i = args.length <= 2 ? 0 : 1;
+        Scriptable regexp = ScriptRuntime.toObject(cx, funObj.getParentScope(), arg(args, i));
+        Object result = ScriptableObject.callMethod(cx, regexp, "test", new Object[] {arg(args, i + 1)});
+        if (!ScriptRuntime.toBoolean(result)) {
+            throw failure(funObj, new AssertionFailedError(message(args, i) + "expected match:<" + str(arg(args, i))
+                    + "> but was:<" + str(arg(args, i + 1)) + ">"));
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /** assertDeepEquals([message,] expected, actual) */
+    public static Object assertDeepEquals(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        int i = args.length <= 2 ? 0 : 1;
+        try {
+            assertDeepEquals(i == 0 ? null : str(args[0]), arg(args, i), arg(args, i + 1));
+        } catch (AssertionFailedError afe) {
+            throw failure(funObj, afe);
+        }
+        return Context.getUndefinedValue();
+    }
+
+    /**
+     * Assert values are deeply equal.
+     * @param message message or null
+     * @param expected expected value
+     * @param actual actual value
+     * @throws AssertionFailedError with path of first difference
+     */
+    public static void assertDeepEquals(String message, Object expected, Object actual) {
+        DeepEquals de = deepEquals.get();
+        // getters may call back into javascript and assert again
+        if (de == null || de.depth > 0) {
+            de = new DeepEquals();
+            deepEquals.set(de);
+        }
+        Difference diff = de.compare(expected, actual);
+        if (diff != null) {
+            String path = diff.path.length() > 0 && diff.path.charAt(0) == '.' ? diff.path.substring(1) : diff.path.toString();
+            throw new AssertionFailedError((message == null ? "" : message + " ") + diff.message
+                    + (path.length() > 0 ? " at " + path : ""));
+        }
+    }
+
+    // first difference found, path is built as recursion unwinds
+    private static class Difference {
+        String message;
+        StringBuilder path = new StringBuilder();
+        Difference(String message) {
+            this.message = message;
+        }
+        Difference(Object expected, Object actual) {
+            this("expected:<" + str(expected) + "> but was:<" + str(actual) + ">");
+        }
+        Difference prepend(Object id) {
+            if (id instanceof Number) {
+                path.insert(0, "[" + id + "]");
+            } else if (isIdentifier(id.toString())) {
+                path.insert(0, "." + id);
+            } else {
+                path.insert(0, "[\"" + id.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"]");
+            }
+            return this;
+        }
+    }
+
+    private static class DeepEquals {
+        // pairs of expected and actual containers being compared on current path
+        private Object[] stack = new Object[32];
+        private int depth;
+
+        Difference compare(Object expected, Object actual) {
+            if (expected == actual) {
+                return null;
+            }
+            Object e = unwrap(expected);
+            Object a = unwrap(actual);
+            boolean ec = isContainer(e);
+            boolean ac = isContainer(a);
+            if (!ec || !ac) {
+                return ec == ac && leafEquals(e, a, expected, actual) ? null : new Difference(expected, actual);
+            }
+            for (int i = 0; i < depth; i += 2) {
+                if (stack[i] == e && stack[i + 1] == a) {
+                    return null;
+                }
+            }
+            if (depth == stack.length) {
+                Object[] grown = new Object[depth * 2];
+                System.arraycopy(stack, 0, grown, 0, depth);
+                stack = grown;
+            }
+            stack[depth++] = e;
+            stack[depth++] = a;
+            try {
+                if (e instanceof NativeObject && a instanceof NativeObject) {
+                    return compareObjects((NativeObject) e, (NativeObject) a);
+                } else if (!(e instanceof NativeObject) && !(a instanceof NativeObject)) {
+                    return compareArrays(e, a);
+                }
+                return new Difference(expected, actual);
+            } finally {
+                depth -= 2;
+            }
+        }
+
+        private Difference compareArrays(Object e, Object a) {
+            long elength = length(e);
+            long alength = length(a);
+            if (elength != alength) {
+                return new Difference("expected length:<" + elength + "> but was:<" + alength + ">");
+            }
+            if (e.getClass() == a.getClass() && primitiveArraysEqual(e, a)) {
+                return null;
+            }
+            for (int i = 0; i < elength; i++) {
+                Difference diff = compare(element(e, i), element(a, i));
+                if (diff != null) {
+                    return diff.prepend(i);
+                }
+            }
+            return null;
+        }
+
+        private Difference compareObjects(NativeObject e, NativeObject a) {
+            Object[] eids = e.getIds();
+            for (Object id : eids) {
+                Object av = property(a, id);
+                if (av == Scriptable.NOT_FOUND) {
+                    return new Difference("missing property").prepend(id);
+                }
+                Difference diff = compare(property(e, id), av);
+                if (diff != null) {
+                    return diff.prepend(id);
+                }
+            }
+            Object[] aids = a.getIds();
+            if (aids.length != eids.length) {
+                for (Object id : aids) {
+                    if (property(e, id) == Scriptable.NOT_FOUND) {
+                        return new Difference("unexpected property").prepend(id);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static boolean isContainer(Object o) {
+        return o instanceof NativeArray || o instanceof NativeObject || (o != null && o.getClass().isArray());
+    }
+
+    private static boolean leafEquals(Object e, Object a, Object expected, Object actual) {
+        if (e != null && e != Undefined.instance && !(e instanceof Scriptable) && !(e instanceof Number)
+                && !(e instanceof String) && !(e instanceof Boolean)) {
+            return e.equals(a);
+        }
+        if (expected instanceof Scriptable && actual instanceof Scriptable
+                && "Date".equals(((Scriptable) expected).getClassName())
+                && "Date".equals(((Scriptable) actual).getClassName())) {
+            return ScriptRuntime.toNumber(expected) == ScriptRuntime.toNumber(actual);
+        }
+        return ScriptRuntime.eq(expected, actual);
+    }
+
+    private static long length(Object array) {
+        return array instanceof NativeArray ? ((NativeArray) array).getLength() : Array.getLength(array);
+    }
+
+    private static Object element(Object array, int index) {
+        if (array instanceof NativeArray) {
+            Object value = ((NativeArray) array).get(index, (NativeArray) array);
+            return value == Scriptable.NOT_FOUND ? Undefined.instance : value;
+        }
+        return Array.get(array, index);
+    }
+
+    private static Object property(NativeObject obj, Object id) {
+        return id instanceof Integer ? obj.get((Integer) id, obj) : obj.get(id.toString(), obj);
+    }
+
+    // same class arrays of primitives compared without boxing
+    private static boolean primitiveArraysEqual(Object e, Object a) {
+        if (e instanceof int[]) { return Arrays.equals((int[]) e, (int[]) a); }
+        if (e instanceof long[]) { return Arrays.equals((long[]) e, (long[]) a); }
+        if (e instanceof double[]) { return Arrays.equals((double[]) e, (double[]) a); }
+        if (e instanceof byte[]) { return Arrays.equals((byte[]) e, (byte[]) a); }
+        if (e instanceof char[]) { return Arrays.equals((char[]) e, (char[]) a); }
+        if (e instanceof short[]) { return Arrays.equals((short[]) e, (short[]) a); }
+        if (e instanceof float[]) { return Arrays.equals((float[]) e, (float[]) a); }
+        if (e instanceof boolean[]) { return Arrays.equals((boolean[]) e, (boolean[]) a); }
+        return false;
+    }
+
+    private static Object unwrap(Object o) {
+        return o instanceof Wrapper ? ((Wrapper) o).unwrap() : o;
+    }
+
+    private static boolean isIdentifier(String s) {
+        if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < s.length(); i++) {
+            if (!Character.isJavaIdentifierPart(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // thrown the same as javascript 'throw', so tests can catch failures
+    private static JavaScriptException failure(Function funObj, AssertionFailedError afe) {
+        return new JavaScriptException(Context.javaToJS(afe, funObj.getParentScope()), null, 0);
+    }
+
+    // missing args are undefined
+    private static Object arg(Object[] args, int i) {
+        return i < args.length ? args[i] : Undefined.instance;
+    }
+
+    // message followed by space if given
+    private static String message(Object[] args, int i) {
+        return i == 0 ? "" : str(args[0]) + " ";
+    }
+
+    // same as javascript string concatenation, java arrays shown with contents
+    private static String str(Object value) {
+        Object v = unwrap(value);
+        if (v != null && v.getClass().isArray()) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < Array.getLength(v); i++) {
+                sb.append(i == 0 ? "" : ", ").append(str(Array.get(v, i)));
+            }
+            return sb.append(']').toString();
+        }
+        return ScriptRuntime.add("", value);
+    }
+}
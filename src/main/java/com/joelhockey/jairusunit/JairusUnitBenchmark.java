@@ -0,0 +1,350 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Benchmark for a javascript 'bench*' method.  Optional 'setUp' is called
+ * once, then the method is called repeatedly in time-boxed batches, first
+ * for warmup iterations which are discarded, then for measurement
+ * iterations.  Each iteration gives ops/s and mean time per op, from which
+ * the mean ops/s with a 99% confidence interval (Student's t) and the median
+ * and maximum of the batch mean time per op are calculated.  Individual
+ * calls are not timed, so these are not percentiles of single calls.
+ * Optional 'tearDown' is called once at the end.
+ * <p>
+ * If a baseline is set and ops/s is lower than the baseline by more than
+ * the regression threshold, the benchmark fails.
+ * @author Joel Hockey
+ */
+public class JairusUnitBenchmark extends JsFunctionTestCase {
+    public static final int DEFAULT_WARMUP_ITERATIONS = 5;
+    public static final int DEFAULT_ITERATIONS = 10;
+    public static final long DEFAULT_BATCH_MILLIS = 100;
+    public static final double DEFAULT_THRESHOLD = 10;
+
+    // two-sided 99% critical values of Student's t for 1 to 30 degrees of freedom
+    private static final double[] T_99 = {
+        63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+        3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845,
+        2.831, 2.819, 2.807, 2.797, 2.787, 2.779, 2.771, 2.763, 2.756, 2.750,
+    };
+
+    private static final Pattern JSON_RESULT = Pattern.compile(
+            "\"name\": \"((?:[^\"\\\\]|\\\\.)*)\".*\"opsPerSec\": ([0-9.Ee+-]+)");
+
+    private static int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+    private static int iterations = DEFAULT_ITERATIONS;
+    private static long batchMillis = DEFAULT_BATCH_MILLIS;
+    private static double threshold = DEFAULT_THRESHOLD;
+
+    private String key;
+    private double baselineOpsPerSec;
+    private Result result;
+
+    /** Result of benchmark. */
+    public static class Result {
+        public String name;
+        public int iterations;
+        public long ops;
+        public double opsPerSec;
+        /** Half-width of 99% confidence interval for opsPerSec. */
+        public double error;
+        public double meanNanos;
+        /** Median of the mean time per op of each iteration. */
+        public double batchP50Nanos;
+        /** Maximum of the mean time per op of each iteration. */
+        public double batchMaxNanos;
+        public double baselineOpsPerSec;
+
+        @Override
+        public String toString() {
+            String s = String.format(Locale.US, "%s: %.1f ops/s +/- %.1f%% (mean %.1f ns, batch p50 %.1f ns, batch max %.1f ns)",
+                    name, opsPerSec, opsPerSec == 0 ? 0 : 100 * error / opsPerSec, meanNanos, batchP50Nanos, batchMaxNanos);
+            if (baselineOpsPerSec > 0) {
+                s += String.format(Locale.US, ", %+.1f%% vs baseline", 100 * (opsPerSec / baselineOpsPerSec - 1));
+            }
+            return s;
+        }
+
+        String toJson() {
+            return String.format(Locale.US, "{\"name\": \"%s\", \"opsPerSec\": %.3f, \"error\": %.3f, "
+                    + "\"meanNanos\": %.1f, \"batchP50Nanos\": %.1f, \"batchMaxNanos\": %.1f, \"iterations\": %d, \"ops\": %d%s}",
+                    jsonEscape(name), opsPerSec, error, meanNanos, batchP50Nanos, batchMaxNanos,
+                    iterations, ops, baselineOpsPerSec > 0
+                        ? String.format(Locale.US, ", \"baselineOpsPerSec\": %.3f", baselineOpsPerSec) : "");
+        }
+    }
+
+    /**
+     * Create benchmark.
+     * @param instance javascript object containing bench method
+     * @param className name used in reports in place of java class name
+     * @param methodName name of bench method
+     */
+    public JairusUnitBenchmark(Scriptable instance, String className, String methodName) {
+        super(instance, className, methodName);
+        key = getName() + "(" + className + ")";
+    }
+
+    /** Set warmup iterations, default {@value #DEFAULT_WARMUP_ITERATIONS}. */
+    public static void setWarmupIterations(int n) { warmupIterations = n; }
+    /** Set measurement iterations, default {@value #DEFAULT_ITERATIONS}. */
+    public static void setIterations(int n) { iterations = Math.max(n, 1); }
+    /** Set millis for each iteration, default {@value #DEFAULT_BATCH_MILLIS}. */
+    public static void setBatchMillis(long millis) { batchMillis = millis; }
+    /** Set percent ops/s may drop below baseline before failing, default {@value #DEFAULT_THRESHOLD}. */
+    public static void setThreshold(double percent) { threshold = percent; }
+
+    /** Reset all settings to defaults. */
+    public static void reset() {
+        warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        iterations = DEFAULT_ITERATIONS;
+        batchMillis = DEFAULT_BATCH_MILLIS;
+        threshold = DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * Key used to match baseline, defaults to name and class name.
+     * @param key key, should not include machine specific paths
+     */
+    public void setKey(String key) { this.key = key; }
+    /** @return key used to match baseline */
+    public String getKey() { return key; }
+    /** @param opsPerSec baseline ops/s or 0 for none */
+    public void setBaseline(double opsPerSec) { this.baselineOpsPerSec = opsPerSec; }
+    /** @return result or null if benchmark not run or threw an error */
+    public Result getResult() { return result; }
+
+    @Override
+    protected void runTest() throws Throwable {
+        result = null;
+        Function method = getMethod(getName(), true);
+        for (int i = 0; i < warmupIterations; i++) {
+            batch(method);
+        }
+        double[] opsPerSec = new double[iterations];
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] batch = batch(method);
+            totalOps += batch[0];
+            totalNanos += batch[1];
+            opsPerSec[i] = batch[0] * 1e9 / batch[1];
+            nanosPerOp[i] = (double) batch[1] / batch[0];
+        }
+
+        Result r = new Result();
+        r.name = key;
+        r.iterations = iterations;
+        r.ops = totalOps;
+        r.meanNanos = (double) totalNanos / totalOps;
+        double sum = 0;
+        for (double d : opsPerSec) {
+            sum += d;
+        }
+        r.opsPerSec = sum / iterations;
+        if (iterations > 1) {
+            double sq = 0;
+            for (double d : opsPerSec) {
+                sq += (d - r.opsPerSec) * (d - r.opsPerSec);
+            }
+            r.error = t99(iterations - 1) * Math.sqrt(sq / (iterations - 1)) / Math.sqrt(iterations);
+        }
+        Arrays.sort(nanosPerOp);
+        r.batchP50Nanos = percentile(nanosPerOp, 50);
+        r.batchMaxNanos = nanosPerOp[iterations - 1];
+        r.baselineOpsPerSec = baselineOpsPerSec;
+        result = r;
+
+        if (baselineOpsPerSec > 0 && r.opsPerSec < baselineOpsPerSec * (1 - threshold / 100)) {
+            fail(String.format(Locale.US, "Regressed %.1f%% (threshold %.1f%%): %.1f ops/s, baseline %.1f ops/s",
+                    100 * (1 - r.opsPerSec / baselineOpsPerSec), threshold, r.opsPerSec, baselineOpsPerSec));
+        }
+    }
+
+    // call method until batch time is up, returns {ops, nanos}
+    private long[] batch(Function method) throws Throwable {
+        long batchNanos = batchMillis * 1000000;
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            invoke(method);
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < batchNanos);
+        return new long[] {ops, elapsed};
+    }
+
+    // two-sided 99% critical value of Student's t, using the
+    // Cornish-Fisher expansion from the normal value beyond the table
+    private static double t99(int df) {
+        if (df <= T_99.length) {
+            return T_99[df - 1];
+        }
+        double z = 2.576;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        return z + (z3 + z) / (4 * df) + (5 * z5 + 16 * z3 + 3 * z) / (96.0 * df * df);
+    }
+
+    // nearest rank of sorted values
+    private static double percentile(double[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Find all benchmarks in test.
+     * @param test test or suite
+     * @param benchmarks list to add benchmarks to
+     */
+    public static void find(Test test, List<JairusUnitBenchmark> benchmarks) {
+        if (test instanceof JairusUnitBenchmark) {
+            benchmarks.add((JairusUnitBenchmark) test);
+        } else if (test instanceof TestSuite) {
+            for (Enumeration<?> e = ((TestSuite) test).tests(); e.hasMoreElements(); ) {
+                find((Test) e.nextElement(), benchmarks);
+            }
+        }
+    }
+
+    /**
+     * Write results as json.
+     * @param file file to write
+     * @param benchmarks benchmarks, those without results are skipped
+     * @throws IOException if error writing
+     */
+    public static void write(File file, List<JairusUnitBenchmark> benchmarks) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.print("{\n  \"benchmarks\": [");
+            String sep = "\n    ";
+            for (JairusUnitBenchmark bench : benchmarks) {
+                if (bench.getResult() != null) {
+                    out.print(sep + bench.getResult().toJson());
+                    sep = ",\n    ";
+                }
+            }
+            out.print("\n  ]\n}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read ops/s for each benchmark from json written by {@link #write(File, List)}.
+     * @param file file to read
+     * @return map of key to ops/s, empty if file doesn't exist
+     * @throws IOException if error reading
+     */
+    public static Map<String, Double> readBaseline(File file) throws IOException {
+        Map<String, Double> result = new HashMap<String, Double>();
+        if (!file.exists()) {
+            return result;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line; (line = in.readLine()) != null; ) {
+                Matcher m = JSON_RESULT.matcher(line);
+                if (m.find()) {
+                    result.put(jsonUnescape(m.group(1)), Double.valueOf(m.group(2)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    // escape quotes, backslashes and control chars for json string
+    static String jsonEscape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // reverse of jsonEscape, also accepts other json escapes
+    static String jsonUnescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            c = s.charAt(++i);
+            switch (c) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                if (i + 4 < s.length()) {
+                    sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                }
+                // fall through
+            default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
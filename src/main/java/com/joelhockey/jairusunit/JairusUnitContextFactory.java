@@ -0,0 +1,126 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.DefiningClassLoader;
+import org.mozilla.javascript.GeneratedClassLoader;
+
+/**
+ * {@link ContextFactory} used by JairusUnit.  Counts classes generated
+ * by Rhino for scripts and JavaAdapters in {@link JairusUnitMetrics}, and
+ * enforces timeouts.  Every context observes instruction counts, and
+ * if the deadline set for the current thread with
+ * {@link #setDeadline(long, String)} has passed, a {@link TimeoutError}
+ * is thrown from within the running script.  The check is a thread local
+ * lookup and {@link System#nanoTime()} every {@value #INSTRUCTION_THRESHOLD}
+ * instructions.  Javascript blocked in a java call such as
+ * 'java.lang.Thread.sleep' is not interrupted.  If coverage or profiling
+ * is enabled, each context is configured by
+ * {@link JairusUnitCoverage#configure(Context)} and
+ * {@link JairusUnitProfiler#configure(Context)}.
+ * @author Joel Hockey
+ */
+public class JairusUnitContextFactory extends ContextFactory {
+    /** Number of instructions between deadline checks. */
+    public static final int INSTRUCTION_THRESHOLD = 10000;
+
+    private static final ThreadLocal<Deadline> DEADLINE = new ThreadLocal<Deadline>();
+
+    private static class Deadline {
+        long nanos;
+        String message;
+        Deadline(long nanos, String message) {
+            this.nanos = nanos;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Thrown when a script runs past its deadline.  Extends {@link Error}
+     * so it is not caught by javascript try/catch.
+     */
+    public static class TimeoutError extends Error {
+        private static final long serialVersionUID = 0x5A1B2C3D4E5F6071L;
+        public TimeoutError(String message) {
+            super(message);
+        }
+    }
+
+    /** Install as global factory if no other global factory has been set. */
+    public static void initGlobal() {
+        if (!ContextFactory.hasExplicitGlobal()) {
+            ContextFactory.initGlobal(new JairusUnitContextFactory());
+        }
+    }
+
+    /**
+     * Set deadline for scripts running on current thread.
+     * @param deadline {@link System#nanoTime()} value after which scripts
+     * are aborted, or 0 for no deadline
+     * @param message message for {@link TimeoutError}
+     */
+    public static void setDeadline(long deadline, String message) {
+        DEADLINE.set(deadline == 0 ? null : new Deadline(deadline, message));
+    }
+
+    /** Remove deadline for current thread. */
+    public static void clearDeadline() {
+        DEADLINE.remove();
+    }
+
+    @Override
+    protected Context makeContext() {
+        Context cx = super.makeContext();
+        // compiled scripts must also count instructions
+        cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+        cx.setGenerateObserverCount(true);
+        JairusUnitCoverage.configure(cx);
+        JairusUnitProfiler.configure(cx);
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        Deadline deadline = DEADLINE.get();
+        if (deadline != null && System.nanoTime() - deadline.nanos > 0) {
+            throw new TimeoutError(deadline.message);
+        }
+    }
+
+    @Override
+    protected GeneratedClassLoader createClassLoader(ClassLoader parent) {
+        return new DefiningClassLoader(parent) {
+            @Override
+            public Class<?> defineClass(String name, byte[] data) {
+                JairusUnitMetrics.increment(name.startsWith("adapter")
+                        ? JairusUnitMetrics.JAVAADAPTER_CLASSES_GENERATED
+                        : JairusUnitMetrics.SCRIPT_CLASSES_GENERATED);
+                return super.defineClass(name, data);
+            }
+        };
+    }
+}
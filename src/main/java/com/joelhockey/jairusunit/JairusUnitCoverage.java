@@ -0,0 +1,401 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.FileLock;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+/**
+ * Line coverage of scripts loaded with {@link JairusUnitScope#load(String)}
+ * using Rhino's {@link Debugger} hooks.  Rhino only calls a debugger from the
+ * interpreter, so when enabled, every context has this debugger attached and
+ * covered scripts are compiled for the interpreter.  Scripts which are not
+ * covered, such as 'jairusunit.js' and those not matching the include
+ * pattern, are still compiled to bytecode by {@link JairusUnitScriptCache}
+ * with the debugger detached, see {@link #suspend(Context, String)}.
+ * <p>
+ * Executable lines of each function are recorded when it is compiled, and
+ * each line change increments a counter for the line in an
+ * {@link AtomicIntegerArray} for the script, so all threads in the jvm share
+ * one set of counts.  Eval and Function constructor code is not tracked.
+ * <p>
+ * Coverage is written to each report directory as lcov
+ * ({@value #LCOV_FILENAME}) and Cobertura xml ({@value #COBERTURA_FILENAME}).
+ * When merging, counts from the existing lcov file are added while holding
+ * a lock, so separate jvms writing to the same report directory combine
+ * their results.  Rhino only reports lines, so branch rates are 0.
+ * @author Joel Hockey
+ */
+public class JairusUnitCoverage implements Debugger {
+    public static final String LCOV_FILENAME = "jairusunit-lcov.info";
+    public static final String COBERTURA_FILENAME = "jairusunit-coverage.xml";
+    private static final Pattern GENERATED = Pattern.compile("#\\d+\\((eval|Function)\\)$");
+
+    private static JairusUnitCoverage coverage;
+
+    private Pattern include;
+    private ConcurrentMap<String, Source> sources = new ConcurrentHashMap<String, Source>();
+    private ConcurrentMap<DebuggableScript, Frame> frames = new ConcurrentHashMap<DebuggableScript, Frame>();
+
+    // executable lines and hits of each line for script
+    private static class Source {
+        BitSet lines = new BitSet();
+        volatile AtomicIntegerArray hits = new AtomicIntegerArray(0);
+
+        synchronized void addLines(int[] lineNumbers) {
+            int max = hits.length() - 1;
+            for (int line : lineNumbers) {
+                lines.set(line);
+                max = Math.max(max, line);
+            }
+            if (max >= hits.length()) {
+                AtomicIntegerArray grown = new AtomicIntegerArray(max + 1);
+                for (int i = 0; i < hits.length(); i++) {
+                    grown.set(i, hits.get(i));
+                }
+                hits = grown;
+            }
+        }
+
+        void hit(int line) {
+            AtomicIntegerArray h = hits;
+            if (line >= 0 && line < h.length()) {
+                h.incrementAndGet(line);
+            }
+        }
+    }
+
+    // frame for each function call, shared by all calls to same function
+    private static class Frame implements DebugFrame {
+        private Source source;
+        Frame(Source source) {
+            this.source = source;
+        }
+        public void onLineChange(Context cx, int lineNumber) {
+            source.hit(lineNumber);
+        }
+        public void onEnter(Context cx, Scriptable activation, Scriptable thisObj, Object[] args) {}
+        public void onExceptionThrown(Context cx, Throwable ex) {}
+        public void onExit(Context cx, boolean byThrow, Object resultOrException) {}
+        public void onDebuggerStatement(Context cx) {}
+    }
+
+    private JairusUnitCoverage(Pattern include) {
+        this.include = include;
+    }
+
+    /**
+     * Enable or disable coverage for contexts created after this call
+     * and the current context.  Scripts already compiled are discarded
+     * from {@link JairusUnitScriptCache} so they are recompiled with the
+     * debugger attached.
+     * @param enabled true to enable
+     * @param include regex matched against script url, null for all scripts
+     */
+    public static void setEnabled(boolean enabled, String include) {
+        coverage = enabled ? new JairusUnitCoverage(include == null ? null : Pattern.compile(include)) : null;
+        if (enabled) {
+            JairusUnitScriptCache.clear();
+        }
+        Context cx = Context.getCurrentContext();
+        if (cx != null) {
+            configure(cx);
+        }
+    }
+
+    /** @return true if coverage is enabled */
+    public static boolean isEnabled() {
+        return coverage != null;
+    }
+
+    /**
+     * Attach debugger to context if coverage enabled.  Called by
+     * {@link JairusUnitContextFactory} for each new context.
+     * @param cx context
+     */
+    public static void configure(Context cx) {
+        JairusUnitCoverage current = coverage;
+        if (current != null) {
+            if (!(cx.getDebugger() instanceof JairusUnitCoverage)) {
+                // keep optimization level to compile scripts which are not covered
+                int optimizationLevel = cx.getOptimizationLevel();
+                cx.setGeneratingDebug(true);
+                cx.setOptimizationLevel(-1);
+                cx.setDebugger(current, optimizationLevel);
+            } else {
+                cx.setDebugger(current, cx.getDebuggerContextData());
+            }
+        } else if (cx.getDebugger() instanceof JairusUnitCoverage) {
+            int optimizationLevel = (Integer) cx.getDebuggerContextData();
+            cx.setDebugger(null, null);
+            cx.setOptimizationLevel(optimizationLevel);
+        }
+    }
+
+    /**
+     * Detach debugger and restore optimization level of context before
+     * compiling a script which is not covered.
+     * @param cx current context
+     * @param url url of script
+     * @return value to pass to {@link #resume(Context, Object)}
+     */
+    public static Object suspend(Context cx, String url) {
+        Debugger debugger = cx.getDebugger();
+        if (!(debugger instanceof JairusUnitCoverage) || ((JairusUnitCoverage) debugger).covers(url)) {
+            return null;
+        }
+        Object optimizationLevel = cx.getDebuggerContextData();
+        cx.setDebugger(null, null);
+        cx.setOptimizationLevel((Integer) optimizationLevel);
+        return new Object[] {debugger, optimizationLevel};
+    }
+
+    /**
+     * Reattach debugger after {@link #suspend(Context, String)}.
+     * @param cx current context
+     * @param suspended value returned by suspend
+     */
+    public static void resume(Context cx, Object suspended) {
+        if (suspended != null) {
+            Object[] saved = (Object[]) suspended;
+            cx.setOptimizationLevel(-1);
+            cx.setDebugger((Debugger) saved[0], saved[1]);
+        }
+    }
+
+    // true if script with given source name is covered
+    private boolean covers(String name) {
+        return name != null && !name.endsWith("/jairusunit.js") && !GENERATED.matcher(name).find()
+                && (include == null || include.matcher(name).find());
+    }
+
+    public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
+        String name = fnOrScript.getSourceName();
+        if (!covers(name)) {
+            return;
+        }
+        Source s = sources.get(name);
+        if (s == null) {
+            Source created = new Source();
+            s = sources.putIfAbsent(name, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        s.addLines(fnOrScript.getLineNumbers());
+        frames.put(fnOrScript, new Frame(s));
+    }
+
+    public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+        return frames.get(fnOrScript);
+    }
+
+    /**
+     * Write lcov and Cobertura reports to each directory.
+     * @param todirs report directories
+     * @param merge if true, add counts from existing lcov report
+     * @throws IOException if error writing reports
+     */
+    public static void write(Collection<String> todirs, boolean merge) throws IOException {
+        if (coverage == null) {
+            return;
+        }
+        for (String todir : todirs) {
+            coverage.write(new File(todir), merge);
+        }
+    }
+
+    private void write(File todir, boolean merge) throws IOException {
+        File lcov = new File(todir, LCOV_FILENAME);
+        RandomAccessFile lockFile = new RandomAccessFile(lcov.getPath() + ".lock", "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            // sorted by file, then line to hits
+            Map<String, Map<Integer, Integer>> merged = merge ? readLcov(lcov) : new TreeMap<String, Map<Integer, Integer>>();
+            for (Map.Entry<String, Source> entry : sources.entrySet()) {
+                String file = fileName(entry.getKey());
+                Map<Integer, Integer> lines = merged.get(file);
+                if (lines == null) {
+                    lines = new TreeMap<Integer, Integer>();
+                    merged.put(file, lines);
+                }
+                Source source = entry.getValue();
+                synchronized (source) {
+                    for (int line = source.lines.nextSetBit(0); line >= 0; line = source.lines.nextSetBit(line + 1)) {
+                        Integer hits = lines.get(line);
+                        lines.put(line, (hits == null ? 0 : hits) + source.hits.get(line));
+                    }
+                }
+            }
+            writeLcov(lcov, merged);
+            writeCobertura(new File(todir, COBERTURA_FILENAME), merged);
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    // path of file urls, others unchanged
+    private static String fileName(String url) {
+        if (url.startsWith("file:")) {
+            try {
+                return new File(new URI(url)).getPath();
+            } catch (Exception e) {} // use url
+        }
+        return url;
+    }
+
+    private static Map<String, Map<Integer, Integer>> readLcov(File file) throws IOException {
+        Map<String, Map<Integer, Integer>> result = new TreeMap<String, Map<Integer, Integer>>();
+        if (!file.exists()) {
+            return result;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            Map<Integer, Integer> lines = null;
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith("SF:")) {
+                    lines = new TreeMap<Integer, Integer>();
+                    result.put(line.substring(3), lines);
+                } else if (line.startsWith("DA:") && lines != null) {
+                    String[] parts = line.substring(3).split(",");
+                    lines.put(Integer.valueOf(parts[0]), Integer.valueOf(parts[1]));
+                }
+            }
+        } catch (RuntimeException re) {
+            // corrupt report, start again
+            result.clear();
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private static void writeLcov(File file, Map<String, Map<Integer, Integer>> coverage) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (Map.Entry<String, Map<Integer, Integer>> entry : coverage.entrySet()) {
+                out.print("TN:\nSF:" + entry.getKey() + "\n");
+                int hit = 0;
+                for (Map.Entry<Integer, Integer> line : entry.getValue().entrySet()) {
+                    out.print("DA:" + line.getKey() + "," + line.getValue() + "\n");
+                    hit += line.getValue() > 0 ? 1 : 0;
+                }
+                out.print("LF:" + entry.getValue().size() + "\nLH:" + hit + "\nend_of_record\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeCobertura(File file, Map<String, Map<Integer, Integer>> coverage) throws IOException {
+        // group files by directory as packages
+        Map<String, Map<String, Map<Integer, Integer>>> packages = new TreeMap<String, Map<String, Map<Integer, Integer>>>();
+        int valid = 0;
+        int covered = 0;
+        for (Map.Entry<String, Map<Integer, Integer>> entry : coverage.entrySet()) {
+            String dir = entry.getKey().substring(0, entry.getKey().lastIndexOf('/') + 1);
+            Map<String, Map<Integer, Integer>> files = packages.get(dir);
+            if (files == null) {
+                files = new TreeMap<String, Map<Integer, Integer>>();
+                packages.put(dir, files);
+            }
+            files.put(entry.getKey(), entry.getValue());
+            valid += entry.getValue().size();
+            covered += covered(entry.getValue());
+        }
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.print("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">\n");
+            out.print("<coverage line-rate=\"" + rate(covered, valid) + "\" branch-rate=\"0\" lines-covered=\""
+                    + covered + "\" lines-valid=\"" + valid + "\" branches-covered=\"0\" branches-valid=\"0\""
+                    + " complexity=\"0\" version=\"jairusunit\" timestamp=\"" + System.currentTimeMillis() + "\">\n");
+            out.print("  <sources>\n    <source>.</source>\n  </sources>\n  <packages>\n");
+            for (Map.Entry<String, Map<String, Map<Integer, Integer>>> pkg : packages.entrySet()) {
+                int pkgValid = 0;
+                int pkgCovered = 0;
+                for (Map<Integer, Integer> lines : pkg.getValue().values()) {
+                    pkgValid += lines.size();
+                    pkgCovered += covered(lines);
+                }
+                out.print("    <package name=\"" + JairusUnitResultWriter.esc(pkg.getKey()) + "\" line-rate=\""
+                        + rate(pkgCovered, pkgValid) + "\" branch-rate=\"0\" complexity=\"0\">\n      <classes>\n");
+                for (Map.Entry<String, Map<Integer, Integer>> entry : pkg.getValue().entrySet()) {
+                    String name = JairusUnitResultWriter.esc(entry.getKey());
+                    out.print("        <class name=\"" + name + "\" filename=\"" + name + "\" line-rate=\""
+                            + rate(covered(entry.getValue()), entry.getValue().size())
+                            + "\" branch-rate=\"0\" complexity=\"0\">\n          <methods/>\n          <lines>\n");
+                    for (Map.Entry<Integer, Integer> line : entry.getValue().entrySet()) {
+                        out.print("            <line number=\"" + line.getKey() + "\" hits=\"" + line.getValue()
+                                + "\" branch=\"false\"/>\n");
+                    }
+                    out.print("          </lines>\n        </class>\n");
+                }
+                out.print("      </classes>\n    </package>\n");
+            }
+            out.print("  </packages>\n</coverage>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int covered(Map<Integer, Integer> lines) {
+        int result = 0;
+        for (int hits : lines.values()) {
+            result += hits > 0 ? 1 : 0;
+        }
+        return result;
+    }
+
+    private static String rate(int covered, int valid) {
+        return valid == 0 ? "1" : String.valueOf((double) covered / valid);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Long-lived JairusUnit process which runs requests from
+ * {@link JairusUnitTask} so that JVM startup, Rhino class loading, JIT
+ * warmup, compiled scripts and the shared scope are reused between runs.
+ * Listens on the loopback interface and handles one request at a time.
+ * <p>
+ * Any local process can connect to the port, so on startup the daemon
+ * writes a random token to {@link #tokenFile(int)} which only the user can
+ * read, and ignores requests which do not include it.
+ * <p>
+ * A request is a header line 'jairusunit &lt;token> &lt;fingerprint>' followed by one
+ * line for each arg of {@link JairusUnit#run(String[], java.io.PrintStream)}
+ * and an empty line.  Summary output and anything tests print is streamed
+ * back, followed by a line with {@link #EXIT} and the exit code.  If the
+ * fingerprint of the client classpath does not match the daemon, the daemon
+ * replies with {@link #RESTART} and exits so that the client can start a new
+ * daemon.  The daemon also exits if no request is received within the idle timeout.
+ * @author Joel Hockey
+ */
+public class JairusUnitDaemon {
+    public static final int DEFAULT_PORT = 17537;
+    /** Default idle timeout in seconds. */
+    public static final int DEFAULT_IDLE_TIMEOUT = 3 * 60 * 60;
+    public static final String HEADER = "jairusunit ";
+    /** Prefix of last line of response, followed by exit code. */
+    public static final String EXIT = "\u0000exit ";
+    /** Response if classpath has changed. */
+    public static final String RESTART = "\u0000restart";
+    // millis to wait for each line of header and args from client
+    private static final int READ_TIMEOUT = 10000;
+
+    private int port;
+    private int idleTimeout;
+    private String fingerprint;
+    private String token;
+
+    /**
+     * Create daemon.
+     * @param port port to listen on
+     * @param idleTimeout seconds to wait for a request before exiting
+     */
+    public JairusUnitDaemon(int port, int idleTimeout) {
+        this.port = port;
+        this.idleTimeout = idleTimeout;
+        this.fingerprint = fingerprint(System.getProperty("java.class.path").split(File.pathSeparator));
+    }
+
+    /**
+     * Serve requests until idle timeout or classpath changes.
+     * @throws IOException if error listening on port
+     */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(idleTimeout * 1000);
+        File tokenFile = tokenFile(port);
+        try {
+            token = newToken();
+            writeToken(tokenFile, token);
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException ste) {
+                    return;
+                }
+                try {
+                    if (!handle(socket, server)) {
+                        return;
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+            // leave token of a new daemon which has already started
+            if (token.equals(readToken(port))) {
+                tokenFile.delete();
+            }
+        }
+    }
+
+    // run single request, returns false if daemon should exit
+    private boolean handle(Socket socket, ServerSocket server) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        // accepted socket does not inherit the server timeout, don't let a
+        // silent client block the daemon
+        socket.setSoTimeout(READ_TIMEOUT);
+        String header = in.readLine();
+        if (header == null || !header.startsWith(HEADER)) {
+            return true;
+        }
+        String[] parts = header.substring(HEADER.length()).split(" ", 2);
+        if (parts.length != 2 || !MessageDigest.isEqual(token.getBytes("UTF-8"), parts[0].getBytes("UTF-8"))) {
+            return true;
+        }
+        if (!fingerprint.equals(parts[1])) {
+            // stop listening before replying so new daemon can use port
+            server.close();
+            out.println(RESTART);
+            return false;
+        }
+        List<String> args = new ArrayList<String>();
+        for (String line; (line = in.readLine()) != null && line.length() > 0; ) {
+            args.add(line);
+        }
+        socket.setSoTimeout(0);
+
+        // send everything printed during run to client
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(out);
+        System.setErr(out);
+        int exit;
+        try {
+            exit = JairusUnit.run(args.toArray(new String[args.size()]), out);
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        out.println(EXIT + exit);
+        return true;
+    }
+
+    /**
+     * Return file holding the token of the daemon on port.
+     * @param port daemon port
+     * @return '.jairusunit/daemon-&lt;port>.token' in user's home dir
+     */
+    public static File tokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".jairusunit"), "daemon-" + port + ".token");
+    }
+
+    /**
+     * Read token of the daemon on port.
+     * @param port daemon port
+     * @return token or null if no daemon has started on port
+     * @throws IOException if error reading token file
+     */
+    public static String readToken(int port) throws IOException {
+        File file = tokenFile(port);
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+
+    // random hex token
+    private static String newToken() {
+        byte[] b = new byte[16];
+        new SecureRandom().nextBytes(b);
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // write token readable only by user, dir is restricted before file is
+    // created so that no other user can open the file before it is written
+    private static void writeToken(File file, String token) throws IOException {
+        File dir = file.getParentFile();
+        dir.mkdirs();
+        ownerOnly(dir);
+        dir.setExecutable(false, false);
+        dir.setExecutable(true, true);
+        file.delete();
+        if (!file.createNewFile()) {
+            throw new IOException("Could not create daemon token file: " + file);
+        }
+        ownerOnly(file);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(token + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // remove read and write for group and others where supported
+    private static void ownerOnly(File f) {
+        f.setReadable(false, false);
+        f.setReadable(true, true);
+        f.setWritable(false, false);
+        f.setWritable(true, true);
+    }
+
+    /**
+     * Return fingerprint of classpath.  Includes the size and last-modified
+     * time of each jar, and of each class or jar file within each directory.
+     * @param classpath classpath entries
+     * @return fingerprint which changes if any class on classpath changes
+     */
+    public static String fingerprint(String[] classpath) {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : classpath) {
+            File f = new File(entry).getAbsoluteFile();
+            sb.append(f.getPath()).append('\n');
+            stamp(sb, f);
+        }
+        return JairusUnitScriptCache.hash(sb.toString());
+    }
+
+    private static void stamp(StringBuilder sb, File f) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    String name = child.getName();
+                    if (child.isDirectory() || name.endsWith(".class") || name.endsWith(".jar")) {
+                        stamp(sb, child);
+                    }
+                }
+            }
+        } else if (f.exists()) {
+            sb.append(f.getName()).append(' ').append(f.length())
+                .append(' ').append(f.lastModified()).append('\n');
+        }
+    }
+}
@@ -22,70 +22,202 @@
  * THE SOFTWARE.
  */
 
+
 package com.joelhockey.jairusunit;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.Binding;
 import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
 import javax.naming.NameClassPair;
 import javax.naming.NameParser;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.NotContextException;
 import javax.naming.spi.InitialContextFactory;
 
 /**
  * Initial Context can be helpful in testing J2EE components.
+ * <p>
+ * Contexts are safe to use from multiple threads.  By default all callers
+ * share one context.  Callers can instead get a separate namespace by
+ * setting {@link #NAMESPACE} in the environment passed to
+ * {@link javax.naming.InitialContext}, or for all contexts created on the
+ * current thread with {@link #setNamespace(String)}.  JairusUnit does this
+ * for each test file when run with '-jndinamespaces'.
+ * <p>
+ * Names are flat strings, except that a name 'a/b' is looked up as 'b'
+ * within subcontext 'a' if 'a' was created with
+ * {@link javax.naming.Context#createSubcontext(String)} and 'a/b' is not
+ * bound directly.
  * @author Joel Hockey
  */
 public class JairusUnitInitialContextFactory implements InitialContextFactory {
+    /** Environment property giving namespace to use. */
+    public static final String NAMESPACE = "com.joelhockey.jairusunit.jndi.namespace";
+
     private static Context ctx = new Context();
+    private static ConcurrentMap<String, Context> namespaces = new ConcurrentHashMap<String, Context>();
+    private static ThreadLocal<String> threadNamespace = new ThreadLocal<String>();
+
+    public javax.naming.Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+        Object namespace = environment != null ? environment.get(NAMESPACE) : null;
+        return namespace(namespace != null ? namespace.toString() : threadNamespace.get());
+    }
+
+    /**
+     * Set namespace for contexts created on current thread.
+     * @param namespace namespace or null to use shared context
+     */
+    public static void setNamespace(String namespace) {
+        if (namespace == null) {
+            threadNamespace.remove();
+        } else {
+            threadNamespace.set(namespace);
+        }
+    }
+
+    /** @return namespace of current thread or null if shared */
+    public static String getNamespace() {
+        return threadNamespace.get();
+    }
 
-    public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
-        return ctx;
+    /**
+     * Remove all bindings in namespace.
+     * @param namespace namespace
+     */
+    public static void removeNamespace(String namespace) {
+        namespaces.remove(namespace);
+    }
+
+    private static Context namespace(String namespace) {
+        if (namespace == null) {
+            return ctx;
+        }
+        Context result = namespaces.get(namespace);
+        if (result == null) {
+            Context created = new Context();
+            result = namespaces.putIfAbsent(namespace, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
     }
 
     private static class Context implements javax.naming.Context {
-        public Map ctxMap = new HashMap<String, Object>();
+        private ConcurrentMap<String, Object> ctxMap = new ConcurrentHashMap<String, Object>();
         public Object lookup(String name) throws NamingException {
-            return ctxMap.get(name);
+            if (name.length() == 0) {
+                return this;
+            }
+            Object value = ctxMap.get(name);
+            int i = subcontext(name);
+            if (value == null && i > 0) {
+                return ((Context) ctxMap.get(name.substring(0, i))).lookup(name.substring(i + 1));
+            }
+            return value;
         }
         public void bind(String name, Object obj) throws NamingException {
-            ctxMap.put(name, obj);
+            int i = subcontext(name);
+            if (i > 0) {
+                ((Context) ctxMap.get(name.substring(0, i))).bind(name.substring(i + 1), obj);
+            } else if (obj == null) {
+                // null values not allowed in map, and lookup of missing name returns null
+                ctxMap.remove(name);
+            } else {
+                ctxMap.put(name, obj);
+            }
         }
         public void rebind(String name, Object obj) throws NamingException {
-            ctxMap.put(name, obj);
+            bind(name, obj);
         }
         public void unbind(String name) throws NamingException {
+            int i = subcontext(name);
+            if (i > 0 && !ctxMap.containsKey(name)) {
+                ((Context) ctxMap.get(name.substring(0, i))).unbind(name.substring(i + 1));
+                return;
+            }
             ctxMap.remove(name);
         }
         public void rename(String oldName, String newName) throws NamingException {
-            Object value = ctxMap.remove(oldName);
+            Object value = lookup(oldName);
             if (value != null) {
-                ctxMap.put(newName, value);
+                unbind(oldName);
+                bind(newName, value);
             }
         }
+        public javax.naming.Context createSubcontext(String name) throws NamingException {
+            int i = subcontext(name);
+            if (i > 0) {
+                return ((Context) ctxMap.get(name.substring(0, i))).createSubcontext(name.substring(i + 1));
+            }
+            Context sub = new Context();
+            if (ctxMap.putIfAbsent(name, sub) != null) {
+                throw new NameAlreadyBoundException(name);
+            }
+            return sub;
+        }
+        public void destroySubcontext(String name) throws NamingException {
+            if (lookup(name) instanceof Context) {
+                unbind(name);
+            }
+        }
+        public NamingEnumeration<NameClassPair> list(String name) throws NamingException {
+            List<NameClassPair> result = new ArrayList<NameClassPair>();
+            for (Map.Entry<String, Object> entry : context(name).ctxMap.entrySet()) {
+                result.add(new NameClassPair(entry.getKey(), entry.getValue().getClass().getName()));
+            }
+            return new ListEnumeration<NameClassPair>(result);
+        }
+        public NamingEnumeration<Binding> listBindings(String name) throws NamingException {
+            List<Binding> result = new ArrayList<Binding>();
+            for (Map.Entry<String, Object> entry : context(name).ctxMap.entrySet()) {
+                result.add(new Binding(entry.getKey(), entry.getValue()));
+            }
+            return new ListEnumeration<Binding>(result);
+        }
         public void close() throws NamingException {}
 
+        // index of '/' after leading subcontext in name, or -1
+        private int subcontext(String name) {
+            for (int i = name.indexOf('/'); i > 0; i = name.indexOf('/', i + 1)) {
+                if (ctxMap.get(name.substring(0, i)) instanceof Context) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Context context(String name) throws NamingException {
+            Object value = lookup(name);
+            if (!(value instanceof Context)) {
+                throw new NotContextException(name);
+            }
+            return (Context) value;
+        }
+
         // ignore below here
         public Object addToEnvironment(String propName, Object propVal) throws NamingException { throw new UnsupportedOperationException(); }
         public void bind(Name name, Object obj) throws NamingException { throw new UnsupportedOperationException(); }
         public Name composeName(Name name, Name prefix) throws NamingException { throw new UnsupportedOperationException(); }
         public String composeName(String name, String prefix) throws NamingException { throw new UnsupportedOperationException(); }
         public javax.naming.Context createSubcontext(Name name) throws NamingException { throw new UnsupportedOperationException(); }
-        public javax.naming.Context createSubcontext(String name) throws NamingException { throw new UnsupportedOperationException(); }
         public void destroySubcontext(Name name) throws NamingException { throw new UnsupportedOperationException(); }
-        public void destroySubcontext(String name) throws NamingException { throw new UnsupportedOperationException(); }
         public Hashtable<?, ?> getEnvironment() throws NamingException { throw new UnsupportedOperationException(); }
         public String getNameInNamespace() throws NamingException { throw new UnsupportedOperationException(); }
         public NameParser getNameParser(Name name) throws NamingException { throw new UnsupportedOperationException(); }
         public NameParser getNameParser(String name) throws NamingException { throw new UnsupportedOperationException(); }
         public NamingEnumeration<NameClassPair> list(Name name) throws NamingException { throw new UnsupportedOperationException(); }
-        public NamingEnumeration<NameClassPair> list(String name) throws NamingException { throw new UnsupportedOperationException(); }
         public NamingEnumeration<Binding> listBindings(Name name) throws NamingException { throw new UnsupportedOperationException(); }
-        public NamingEnumeration<Binding> listBindings(String name) throws NamingException { throw new UnsupportedOperationException(); }
         public Object lookup(Name name) throws NamingException { throw new UnsupportedOperationException(); }
         public Object lookupLink(Name name) throws NamingException { throw new UnsupportedOperationException(); }
         public Object lookupLink(String name) throws NamingException { throw new UnsupportedOperationException(); }
@@ -94,4 +226,17 @@ public class JairusUnitInitialContextFactory implements InitialContextFactory {
         public void rename(Name oldName, Name newName) throws NamingException { throw new UnsupportedOperationException(); }
         public void unbind(Name name) throws NamingException { throw new UnsupportedOperationException(); }
     }
+
+    // snapshot of list or bindings
+    private static class ListEnumeration<T> implements NamingEnumeration<T> {
+        private Iterator<T> it;
+        ListEnumeration(List<T> list) {
+            it = list.iterator();
+        }
+        public boolean hasMore() { return it.hasNext(); }
+        public boolean hasMoreElements() { return it.hasNext(); }
+        public T next() throws NoSuchElementException { return it.next(); }
+        public T nextElement() { return it.next(); }
+        public void close() {}
+    }
 }
@@ -0,0 +1,243 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the files each test file depends on so that later runs can skip
+ * test files whose dependencies have not changed.  Dependencies are every
+ * url passed to {@link JairusUnitScope#load(String)} or
+ * {@link JairusUnitScope#readFile(String)} while discovering and running
+ * the tests in a file, including the test file itself, 'jairusunit.js' and
+ * any preloads.  Each dependency is stored with its last-modified time and
+ * SHA-1 of its content.  A dependency is unchanged if its last-modified time
+ * is the same, or if its content hash is the same.
+ * <p>
+ * One manifest is kept in each report directory as
+ * {@value #FILENAME}.  Java classes used by tests are not tracked.
+ * @author Joel Hockey
+ */
+public class JairusUnitManifest {
+    public static final String FILENAME = "jairusunit-manifest.txt";
+    private static final String MISSING = "-";
+
+    private File file;
+    private Map<String, Entry> entries = new TreeMap<String, Entry>();
+    private Set<String> recorded = new HashSet<String>();
+    // content hashes for this run keyed by url, a manifest is created for
+    // each run so files changed between runs of a daemon are hashed again
+    private ConcurrentMap<String, Dependency> hashes = new ConcurrentHashMap<String, Dependency>();
+
+    private static class Dependency {
+        long lastModified;
+        String hash;
+        Dependency(long lastModified, String hash) {
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private static class Entry {
+        boolean success;
+        Map<String, Dependency> dependencies = new LinkedHashMap<String, Dependency>();
+        Entry(boolean success) {
+            this.success = success;
+        }
+    }
+
+    /**
+     * Read manifest from given file if it exists.
+     * @param file manifest file
+     * @throws IOException if error reading manifest
+     */
+    public JairusUnitManifest(File file) throws IOException {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            Entry entry = null;
+            for (String line; (line = reader.readLine()) != null; ) {
+                // test <pass|fail> <file>
+                // dep <lastModified> <sha1> <url>
+                if (line.startsWith("test ")) {
+                    String[] parts = line.split(" ", 3);
+                    entry = new Entry("pass".equals(parts[1]));
+                    entries.put(parts[2], entry);
+                } else if (line.startsWith("dep ") && entry != null) {
+                    String[] parts = line.split(" ", 4);
+                    entry.dependencies.put(parts[3], new Dependency(Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        } catch (RuntimeException re) {
+            // corrupt manifest, run everything
+            entries.clear();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Return result from previous run if none of the dependencies of test
+     * file have changed.
+     * @param testFile full path of test file
+     * @return true if previous run passed, false if it failed, or null
+     * if test file was not previously run or any dependency has changed
+     */
+    public synchronized Boolean previousResult(String testFile) {
+        Entry entry = entries.get(testFile);
+        if (entry == null) {
+            return null;
+        }
+        for (Map.Entry<String, Dependency> dep : entry.dependencies.entrySet()) {
+            if (MISSING.equals(dep.getValue().hash)) {
+                return null;
+            }
+            Dependency current = dependency(dep.getKey(), dep.getValue().lastModified);
+            if (current.lastModified != dep.getValue().lastModified
+                    && !current.hash.equals(dep.getValue().hash)) {
+                return null;
+            }
+        }
+        return entry.success;
+    }
+
+    /**
+     * Record result and dependencies of test file.
+     * @param testFile full path of test file
+     * @param success true if all tests passed
+     * @param dependencies urls of all files loaded or read by test file
+     */
+    public synchronized void record(String testFile, boolean success, Collection<String> dependencies) {
+        Entry entry = new Entry(success);
+        for (String url : dependencies) {
+            entry.dependencies.put(url, dependency(url, -1));
+        }
+        entries.put(testFile, entry);
+        recorded.add(testFile);
+    }
+
+    /**
+     * Write manifest.  Entries recorded in this run are merged with
+     * the current file while holding a lock so that separate jvms writing
+     * to the same report directory do not lose each other's results.
+     * @throws IOException if error writing manifest
+     */
+    public synchronized void write() throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Map<String, Entry> merged = new JairusUnitManifest(file).entries;
+            for (String testFile : recorded) {
+                merged.put(testFile, entries.get(testFile));
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+                    out.print("test " + (entry.getValue().success ? "pass" : "fail") + " " + entry.getKey() + "\n");
+                    for (Map.Entry<String, Dependency> dep : entry.getValue().dependencies.entrySet()) {
+                        out.print("dep " + dep.getValue().lastModified + " " + dep.getValue().hash
+                                + " " + dep.getKey() + "\n");
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not write manifest: " + file);
+            }
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    // current last-modified and hash of url, hash is only calculated
+    // if last-modified differs from expected
+    private Dependency dependency(String url, long expectedLastModified) {
+        Dependency dep = hashes.get(url);
+        if (dep != null) {
+            return dep;
+        }
+        try {
+            URL u = new URL(url);
+            long lastModified = JairusUnitScriptCache.lastModified(u);
+            if (lastModified == expectedLastModified) {
+                return new Dependency(lastModified, null);
+            }
+            dep = new Dependency(lastModified, hash(u));
+        } catch (IOException ioe) {
+            dep = new Dependency(0, MISSING);
+        }
+        hashes.put(url, dep);
+        return dep;
+    }
+
+    // hex sha-1 of url content
+    private static String hash(URL url) throws IOException {
+        InputStream ins = url.openStream();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[4096];
+            for (int l = 0; (l = ins.read(buf)) != -1; ) {
+                md.update(buf, 0, l);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        } finally {
+            ins.close();
+        }
+    }
+}
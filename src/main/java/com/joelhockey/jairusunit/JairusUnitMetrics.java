@@ -0,0 +1,233 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Nanosecond timing of each phase of a run (scope creation, load, compile,
+ * discovery, setUp, test, tearDown, report) and counters such as scripts
+ * compiled and bytes read.  Safe to use from multiple threads.
+ * Results can be written as JSON or Prometheus text at the end of the run.
+ * @author Joel Hockey
+ */
+public class JairusUnitMetrics {
+    public static final String SCOPE = "scope";
+    public static final String LOAD = "load";
+    public static final String COMPILE = "compile";
+    public static final String DISCOVERY = "discovery";
+    public static final String SETUP = "setUp";
+    public static final String TEST = "test";
+    public static final String TEARDOWN = "tearDown";
+    public static final String REPORT = "report";
+    public static final String FILE = "file";
+
+    public static final String SCRIPTS_COMPILED = "scripts_compiled";
+    public static final String SCRIPT_CACHE_HITS = "script_cache_hits";
+    public static final String DISK_CACHE_HITS = "disk_cache_hits";
+    public static final String BYTES_READ = "bytes_read";
+    public static final String READ_CACHE_HITS = "read_cache_hits";
+    public static final String READ_CACHE_MISSES = "read_cache_misses";
+    public static final String READ_CACHE_EVICTIONS = "read_cache_evictions";
+    public static final String RESOLVE_CACHE_HITS = "resolve_cache_hits";
+    public static final String SCRIPT_CLASSES_GENERATED = "script_classes_generated";
+    public static final String JAVAADAPTER_CLASSES_GENERATED = "javaadapter_classes_generated";
+
+    // upper bounds of histogram buckets in nanos, last bucket is +Inf
+    private static final long[] BUCKETS = {
+        1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L,
+    };
+
+    private static ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<String, Histogram>();
+    private static ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static class Histogram {
+        AtomicLong count = new AtomicLong();
+        AtomicLong sum = new AtomicLong();
+        AtomicLong max = new AtomicLong();
+        AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            for (long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); m = max.get());
+            int i = 0;
+            while (i < BUCKETS.length && nanos > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+        }
+    }
+
+    /** @return start time for {@link #record(String, long)} */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record time for phase since start.
+     * @param phase name of phase
+     * @param start value from {@link #start()}
+     * @return elapsed nanos
+     */
+    public static long record(String phase, long start) {
+        long nanos = System.nanoTime() - start;
+        Histogram h = phases.get(phase);
+        if (h == null) {
+            phases.putIfAbsent(phase, new Histogram());
+            h = phases.get(phase);
+        }
+        h.record(nanos);
+        return nanos;
+    }
+
+    /** Increment counter by 1. */
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    /** Add n to counter. */
+    public static void add(String counter, long n) {
+        AtomicLong c = counters.get(counter);
+        if (c == null) {
+            counters.putIfAbsent(counter, new AtomicLong());
+            c = counters.get(counter);
+        }
+        c.addAndGet(n);
+    }
+
+    /** @return value of counter, 0 if never incremented */
+    public static long get(String counter) {
+        AtomicLong c = counters.get(counter);
+        return c == null ? 0 : c.get();
+    }
+
+    /** Wrap stream so that bytes read are added to {@link #BYTES_READ}. */
+    public static InputStream countBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) { add(BYTES_READ, 1); }
+                return b;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int l = super.read(b, off, len);
+                if (l > 0) { add(BYTES_READ, l); }
+                return l;
+            }
+        };
+    }
+
+    /** Clear all phases and counters. */
+    public static void reset() {
+        phases.clear();
+        counters.clear();
+    }
+
+    /**
+     * Write metrics to file.  Files ending in '.prom' or '.txt' are written
+     * in Prometheus text format, otherwise JSON.
+     * @param file file to write
+     * @throws IOException if error writing
+     */
+    public static void write(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            String name = file.getName();
+            if (name.endsWith(".prom") || name.endsWith(".txt")) {
+                writePrometheus(out);
+            } else {
+                writeJson(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"phases\": {");
+        String sep = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(phases).entrySet()) {
+            Histogram h = entry.getValue();
+            out.print(sep);
+            sep = ",\n";
+            out.print("    \"" + entry.getKey() + "\": {\"count\": " + h.count.get()
+                    + ", \"sumNanos\": " + h.sum.get() + ", \"maxNanos\": " + h.max.get() + ", \"buckets\": {");
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                out.print((i == 0 ? "" : ", ") + "\"" + (i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf")
+                        + "\": " + h.buckets.get(i));
+            }
+            out.print("}}");
+        }
+        out.println();
+        out.println("  },");
+        out.println("  \"counters\": {");
+        sep = "";
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            out.print(sep);
+            sep = ",\n";
+            out.print("    \"" + entry.getKey() + "\": " + entry.getValue().get());
+        }
+        out.println();
+        out.println("  }");
+        out.println("}");
+    }
+
+    private static void writePrometheus(PrintWriter out) {
+        out.println("# HELP jairusunit_phase_seconds Time spent in each phase of the run.");
+        out.println("# TYPE jairusunit_phase_seconds histogram");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(phases).entrySet()) {
+            Histogram h = entry.getValue();
+            String label = "phase=\"" + entry.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                cumulative += h.buckets.get(i);
+                String le = i < BUCKETS.length ? String.valueOf(BUCKETS[i] / 1e9) : "+Inf";
+                out.println("jairusunit_phase_seconds_bucket{" + label + ",le=\"" + le + "\"} " + cumulative);
+            }
+            out.println("jairusunit_phase_seconds_sum{" + label + "} " + (h.sum.get() / 1e9));
+            out.println("jairusunit_phase_seconds_count{" + label + "} " + h.count.get());
+        }
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            out.println("# TYPE jairusunit_" + entry.getKey() + "_total counter");
+            out.println("jairusunit_" + entry.getKey() + "_total " + entry.getValue().get());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * Chooses the Rhino optimization level used to compile each script
+ * loaded by {@link JairusUnitScriptCache}.  The level is, in order of
+ * precedence, the level of the first path override whose regex matches the
+ * script url, the global level, or in adaptive mode a level chosen from
+ * the size of the script and the number of times it was loaded.  Scripts
+ * are otherwise compiled at the level of the current {@link Context}.
+ * Scripts compiled with a debugger attached for coverage or profiling
+ * are always interpreted.
+ * <p>
+ * Adaptive mode interprets scripts of at least {@value #ADAPTIVE_SIZE}
+ * chars which are loaded fewer than {@value #ADAPTIVE_LOADS} times, such
+ * as large fixtures, since generating bytecode for them costs more than
+ * interpreting them once.  Other scripts, and those loaded into the shared
+ * scope which is used by every file, are compiled at level
+ * {@value #ADAPTIVE_LEVEL}.  Load counts are the larger of the count so far
+ * in this run and the count from the previous run, so a fixture which
+ * turns out to be loaded often is recompiled to bytecode.
+ * <p>
+ * A script whose generated bytecode exceeds the JVM 64K method limit is
+ * interpreted instead.
+ * <p>
+ * If a stats file is set, the loads, size, level and compile time of each
+ * script are merged into it at the end of the run while holding a lock.
+ * Each line is 'script &lt;loads> &lt;chars> &lt;level> &lt;compile millis> &lt;url>'.
+ * @author Joel Hockey
+ */
+public class JairusUnitOptimization {
+    public static final String ADAPTIVE = "adaptive";
+    /** Size in chars from which adaptive mode interprets scripts loaded only a few times. */
+    public static final int ADAPTIVE_SIZE = 32 * 1024;
+    /** Number of loads from which adaptive mode compiles large scripts. */
+    public static final int ADAPTIVE_LOADS = 3;
+    /** Level used by adaptive mode for scripts which are compiled. */
+    public static final int ADAPTIVE_LEVEL = 9;
+
+    private static Integer level;
+    private static boolean adaptive;
+    private static List<Object[]> paths = new ArrayList<Object[]>();
+    private static File statsFile;
+    private static Map<String, Integer> previousLoads = new HashMap<String, Integer>();
+    private static ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    private static class Stats {
+        AtomicInteger loads = new AtomicInteger();
+        int size;
+        int level;
+        long compileNanos;
+        String reason;
+    }
+
+    /** Clear all settings and stats. */
+    public static synchronized void reset() {
+        level = null;
+        adaptive = false;
+        paths = new ArrayList<Object[]>();
+        statsFile = null;
+        previousLoads = new HashMap<String, Integer>();
+        stats.clear();
+    }
+
+    /**
+     * Set global level.
+     * @param value level -1 to 9, or {@value #ADAPTIVE}
+     * @throws IllegalArgumentException if level is not valid
+     */
+    public static synchronized void setLevel(String value) {
+        if (ADAPTIVE.equals(value)) {
+            adaptive = true;
+            level = null;
+        } else {
+            adaptive = false;
+            level = parseLevel(value);
+        }
+    }
+
+    /**
+     * Add per-path override, first matching override is used.
+     * @param override '&lt;regex>=&lt;level>' where regex is found in script url
+     * @throws IllegalArgumentException if override is not valid
+     */
+    public static synchronized void addPath(String override) {
+        int eq = override.lastIndexOf('=');
+        if (eq == -1) {
+            throw new IllegalArgumentException("Expected <regex>=<level>: " + override);
+        }
+        List<Object[]> copy = new ArrayList<Object[]>(paths);
+        copy.add(new Object[] {Pattern.compile(override.substring(0, eq)),
+                parseLevel(override.substring(eq + 1))});
+        paths = copy;
+    }
+
+    /**
+     * Set stats file and read load counts from previous run if it exists.
+     * @param file stats file or null for none
+     * @throws IOException if error reading file
+     */
+    public static synchronized void setStatsFile(File file) throws IOException {
+        statsFile = file;
+        previousLoads = new HashMap<String, Integer>();
+        if (file == null) {
+            return;
+        }
+        for (Map.Entry<String, String[]> entry : read(file).entrySet()) {
+            try {
+                previousLoads.put(entry.getKey(), Integer.valueOf(entry.getValue()[0]));
+            } catch (NumberFormatException nfe) {} // ignore
+        }
+    }
+
+    /** @return true if any level, override or stats file is set */
+    public static boolean isEnabled() {
+        return level != null || adaptive || !paths.isEmpty() || statsFile != null;
+    }
+
+    /**
+     * Record a load of script, cached or not.
+     * @param url script url
+     */
+    public static void loaded(String url) {
+        stats(url).loads.incrementAndGet();
+    }
+
+    /**
+     * Return level to compile script at.
+     * @param cx current context
+     * @param url script url
+     * @param size chars in script
+     * @param shared true if loading into shared scope
+     * @return level
+     */
+    public static int level(Context cx, String url, int size, boolean shared) {
+        if (cx.getDebugger() != null) {
+            return cx.getOptimizationLevel();
+        }
+        for (Object[] path : paths) {
+            if (((Pattern) path[0]).matcher(url).find()) {
+                return (Integer) path[1];
+            }
+        }
+        if (level != null) {
+            return level;
+        }
+        if (adaptive) {
+            Integer previous = previousLoads.get(url);
+            int loads = Math.max(stats(url).loads.get(), previous == null ? 0 : previous);
+            return shared || size < ADAPTIVE_SIZE || loads >= ADAPTIVE_LOADS ? ADAPTIVE_LEVEL : -1;
+        }
+        return cx.getOptimizationLevel();
+    }
+
+    /**
+     * Record compile of script.
+     * @param url script url
+     * @param size chars in script
+     * @param level level compiled at
+     * @param nanos compile time
+     * @param reason reason level differs from requested level or null
+     */
+    public static void compiled(String url, int size, int level, long nanos, String reason) {
+        Stats s = stats(url);
+        synchronized (s) {
+            s.size = size;
+            s.level = level;
+            s.compileNanos += nanos;
+            s.reason = reason;
+        }
+    }
+
+    private static Stats stats(String url) {
+        Stats s = stats.get(url);
+        if (s == null) {
+            stats.putIfAbsent(url, new Stats());
+            s = stats.get(url);
+        }
+        return s;
+    }
+
+    /**
+     * Print number of scripts compiled and interpreted, and level and
+     * compile time of the scripts which took longest to compile.
+     * @param out stream to print to
+     * @param top number of scripts to print
+     */
+    public static void report(PrintStream out, int top) {
+        List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>();
+        int interpreted = 0;
+        long nanos = 0;
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            if (entry.getValue().compileNanos > 0) {
+                entries.add(entry);
+                nanos += entry.getValue().compileNanos;
+                if (entry.getValue().level < 0) {
+                    interpreted++;
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+            public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+                return b.getValue().compileNanos < a.getValue().compileNanos ? -1
+                        : b.getValue().compileNanos == a.getValue().compileNanos ? 0 : 1;
+            }
+        });
+        out.println(format("Scripts: %d compiled, %d interpreted, %.3f s compiling",
+                entries.size() - interpreted, interpreted, nanos / 1e9));
+        for (Map.Entry<String, Stats> entry : entries.subList(0, Math.min(top, entries.size()))) {
+            Stats s = entry.getValue();
+            out.println(format("%8.3f s  level %2d  %8d chars  %5d loads  %s%s", s.compileNanos / 1e9, s.level,
+                    s.size, s.loads.get(), entry.getKey(), s.reason == null ? "" : " (" + s.reason + ")"));
+        }
+    }
+
+    /**
+     * Write stats file if set.  Stats from this run are merged with the
+     * current file while holding a lock.
+     * @throws IOException if error writing file
+     */
+    public static synchronized void write() throws IOException {
+        if (statsFile == null) {
+            return;
+        }
+        RandomAccessFile lockFile = new RandomAccessFile(statsFile.getPath() + ".lock", "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Map<String, String[]> merged = read(statsFile);
+            for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                Stats s = entry.getValue();
+                if (s.loads.get() > 0) {
+                    merged.put(entry.getKey(), new String[] {String.valueOf(s.loads.get()), String.valueOf(s.size),
+                            String.valueOf(s.level), String.valueOf(s.compileNanos / 1000000)});
+                }
+            }
+            File tmp = new File(statsFile.getPath() + ".tmp");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Map.Entry<String, String[]> entry : merged.entrySet()) {
+                    String[] v = entry.getValue();
+                    out.print("script " + v[0] + " " + v[1] + " " + v[2] + " " + v[3] + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            statsFile.delete();
+            if (!tmp.renameTo(statsFile)) {
+                throw new IOException("Could not write optimization stats: " + statsFile);
+            }
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    // url to {loads, chars, level, compile millis}
+    private static Map<String, String[]> read(File file) throws IOException {
+        Map<String, String[]> result = new TreeMap<String, String[]>();
+        if (!file.exists()) {
+            return result;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] parts = line.split(" ", 6);
+                if (parts.length == 6 && "script".equals(parts[0])) {
+                    result.put(parts[5], new String[] {parts[1], parts[2], parts[3], parts[4]});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private static int parseLevel(String value) {
+        int result = Integer.parseInt(value.trim());
+        if (!Context.isValidOptimizationLevel(result)) {
+            throw new IllegalArgumentException("Invalid optimization level: " + value);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the suites within a file concurrently.  Each {@link TestSuite} which
+ * contains only test cases, such as the suites created for 'Test'
+ * constructors and objects, is run on the given pool.  Other tests such
+ * as global test functions and warnings run on the calling thread.
+ * Results of each suite are recorded and replayed into the real
+ * {@link TestResult} in the original order, so reports look the same as
+ * when run serially.  Each test case enters its own Rhino
+ * {@link org.mozilla.javascript.Context} on the worker thread, and uses the
+ * jndi namespace of the calling thread, see {@link JairusUnitInitialContextFactory},
+ * and profiles samples against the file of the calling thread, see
+ * {@link JairusUnitProfiler}.
+ * @author Joel Hockey
+ */
+public class JairusUnitParallelSuite extends TestSuite {
+    private Test test;
+    private ExecutorService pool;
+
+    /**
+     * Test passed to listeners when results are replayed, with the
+     * duration measured when the test actually ran.
+     */
+    public static class TimedTest implements Test {
+        private Test test;
+        private long nanos;
+        public TimedTest(Test test, long nanos) {
+            this.test = test;
+            this.nanos = nanos;
+        }
+        /** @return duration of test in nanoseconds */
+        public long getNanos() { return nanos; }
+        public int countTestCases() { return test.countTestCases(); }
+        public void run(TestResult result) { test.run(result); }
+        @Override
+        public String toString() { return test.toString(); }
+    }
+
+    // records events on worker thread to be replayed later
+    private static class RecordingResult extends TestResult {
+        private List<Object[]> events = new ArrayList<Object[]>();
+        private Map<Test, Long> starts = new HashMap<Test, Long>();
+        @Override
+        public void startTest(Test test) {
+            starts.put(test, System.nanoTime());
+        }
+        @Override
+        public void addError(Test test, Throwable t) {
+            events.add(new Object[] {test, t});
+        }
+        @Override
+        public void addFailure(Test test, AssertionFailedError t) {
+            events.add(new Object[] {test, t});
+        }
+        @Override
+        public void endTest(Test test) {
+            events.add(new Object[] {test, System.nanoTime() - starts.remove(test)});
+        }
+
+        void replay(TestResult result) {
+            // group error and end events of each test under single start
+            Map<Test, TimedTest> timed = new HashMap<Test, TimedTest>();
+            for (Object[] event : events) {
+                if (event[1] instanceof Long) {
+                    timed.put((Test) event[0], new TimedTest((Test) event[0], (Long) event[1]));
+                }
+            }
+            Test current = null;
+            for (Object[] event : events) {
+                TimedTest test = timed.get(event[0]);
+                if (event[0] != current) {
+                    result.startTest(test);
+                    current = (Test) event[0];
+                }
+                if (event[1] instanceof AssertionFailedError) {
+                    result.addFailure(test, (AssertionFailedError) event[1]);
+                } else if (event[1] instanceof Throwable) {
+                    result.addError(test, (Throwable) event[1]);
+                } else {
+                    result.endTest(test);
+                    current = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create suite.
+     * @param test test, usually from {@link JairusUnit#jairusunitTestSuite(JairusUnitScope, String)}
+     * @param pool pool to run suites on
+     */
+    public JairusUnitParallelSuite(Test test, ExecutorService pool) {
+        super(test.toString());
+        this.test = test;
+        this.pool = pool;
+    }
+
+    @Override
+    public int countTestCases() {
+        return test.countTestCases();
+    }
+
+    @Override
+    public void run(TestResult result) {
+        // submit all suites first, then run or replay in order
+        Map<Test, Future<RecordingResult>> futures = new HashMap<Test, Future<RecordingResult>>();
+        submit(test, futures);
+        try {
+            run(test, result, futures);
+        } finally {
+            for (Future<RecordingResult> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void submit(Test t, Map<Test, Future<RecordingResult>> futures) {
+        if (!(t instanceof TestSuite)) {
+            return;
+        }
+        if (isLeafSuite((TestSuite) t)) {
+            final Test suite = t;
+            final String namespace = JairusUnitInitialContextFactory.getNamespace();
+            final String file = JairusUnitProfiler.getFile();
+            futures.put(t, pool.submit(new Callable<RecordingResult>() {
+                public RecordingResult call() {
+                    RecordingResult recording = new RecordingResult();
+                    JairusUnitInitialContextFactory.setNamespace(namespace);
+                    JairusUnitProfiler.setFile(file);
+                    try {
+                        suite.run(recording);
+                    } finally {
+                        JairusUnitInitialContextFactory.setNamespace(null);
+                        JairusUnitProfiler.setFile(null);
+                    }
+                    return recording;
+                }
+            }));
+            return;
+        }
+        for (Enumeration<?> e = ((TestSuite) t).tests(); e.hasMoreElements(); ) {
+            submit((Test) e.nextElement(), futures);
+        }
+    }
+
+    private void run(Test t, TestResult result, Map<Test, Future<RecordingResult>> futures) {
+        if (result.shouldStop()) {
+            return;
+        }
+        Future<RecordingResult> future = futures.get(t);
+        if (future != null) {
+            try {
+                future.get().replay(result);
+            } catch (InterruptedException ie) {
+                result.addError(t, ie);
+            } catch (ExecutionException ee) {
+                result.addError(t, ee.getCause());
+            }
+        } else if (t instanceof TestSuite) {
+            for (Enumeration<?> e = ((TestSuite) t).tests(); e.hasMoreElements(); ) {
+                run((Test) e.nextElement(), result, futures);
+            }
+        } else {
+            t.run(result);
+        }
+    }
+
+    // suite with at least one test, and only test cases
+    private static boolean isLeafSuite(TestSuite suite) {
+        if (suite.testCount() == 0) {
+            return false;
+        }
+        for (Enumeration<?> e = suite.tests(); e.hasMoreElements(); ) {
+            if (e.nextElement() instanceof TestSuite) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+/**
+ * Sampling profiler for javascript.  When enabled, every context runs
+ * scripts in the interpreter with a {@link Debugger} which pushes each
+ * javascript function onto a stack for the current thread when it is
+ * entered and pops it when it exits.  A background thread samples the
+ * stack of every thread running a test file at a fixed interval, so
+ * samples measure wall-clock time including time spent in java calls.
+ * <p>
+ * Samples for each test file are written in the collapsed stack format
+ * used by flamegraph tools, one 'caller;callee count' line per stack.  At
+ * the end of the run, the functions with the most samples at the top of
+ * the stack (self) and anywhere in the stack (total) are printed.
+ * If coverage is also enabled, the coverage debugger still receives
+ * compilation and line events.
+ * @author Joel Hockey
+ */
+public class JairusUnitProfiler {
+    public static final long DEFAULT_INTERVAL = 5;
+
+    private static JairusUnitProfiler profiler;
+    private static ThreadLocal<Stack> stack = new ThreadLocal<Stack>();
+
+    private long interval;
+    private Thread sampler;
+    private ConcurrentMap<Thread, Stack> stacks = new ConcurrentHashMap<Thread, Stack>();
+    private ConcurrentMap<DebuggableScript, String> names = new ConcurrentHashMap<DebuggableScript, String>();
+    // collapsed stack to samples for each file, guarded by itself
+    private Map<String, Map<String, Integer>> profiles = new HashMap<String, Map<String, Integer>>();
+    private Map<String, Integer> self = new HashMap<String, Integer>();
+    private Map<String, Integer> total = new HashMap<String, Integer>();
+
+    // javascript functions running on a thread, written by the thread and read by sampler
+    private static class Stack {
+        JairusUnitProfiler registered;
+        volatile String file;
+        volatile String[] frames = new String[64];
+        volatile int depth;
+
+        void push(String name) {
+            if (depth == frames.length) {
+                String[] grown = new String[depth * 2];
+                System.arraycopy(frames, 0, grown, 0, depth);
+                frames = grown;
+            }
+            frames[depth] = name;
+            depth++;
+        }
+
+        void pop() {
+            if (depth > 0) {
+                depth--;
+            }
+        }
+
+        // collapsed stack, or null if not running
+        String sample() {
+            int d = depth;
+            String[] f = frames;
+            if (d == 0 || file == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < d && i < f.length; i++) {
+                sb.append(i == 0 ? "" : ";").append(f[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    // attached to each context, calls coverage debugger if there is one
+    private static class Hook implements Debugger {
+        private Debugger delegate;
+        private Map<DebuggableScript, Frame> frames = new HashMap<DebuggableScript, Frame>();
+        Hook(Debugger delegate) {
+            this.delegate = delegate;
+        }
+        public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
+            if (delegate != null) {
+                delegate.handleCompilationDone(cx, fnOrScript, source);
+            }
+        }
+        public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+            // context is only used by one thread at a time
+            Frame frame = frames.get(fnOrScript);
+            if (frame == null) {
+                frame = new Frame(name(fnOrScript), delegate == null ? null : delegate.getFrame(cx, fnOrScript));
+                frames.put(fnOrScript, frame);
+            }
+            return frame;
+        }
+    }
+
+    private static class Frame implements DebugFrame {
+        private String name;
+        private DebugFrame delegate;
+        Frame(String name, DebugFrame delegate) {
+            this.name = name;
+            this.delegate = delegate;
+        }
+        public void onEnter(Context cx, Scriptable activation, Scriptable thisObj, Object[] args) {
+            stack().push(name);
+        }
+        public void onExit(Context cx, boolean byThrow, Object resultOrException) {
+            stack().pop();
+        }
+        public void onLineChange(Context cx, int lineNumber) {
+            if (delegate != null) {
+                delegate.onLineChange(cx, lineNumber);
+            }
+        }
+        public void onExceptionThrown(Context cx, Throwable ex) {}
+        public void onDebuggerStatement(Context cx) {}
+    }
+
+    private JairusUnitProfiler(long interval) {
+        this.interval = Math.max(interval, 1);
+    }
+
+    /**
+     * Start or stop profiling.  When started, contexts created after this
+     * call and the current context are profiled.  Scripts already compiled
+     * are discarded from {@link JairusUnitScriptCache} so they are
+     * recompiled for the interpreter.
+     * @param enabled true to start, false to stop
+     * @param interval millis between samples
+     */
+    public static synchronized void setEnabled(boolean enabled, long interval) {
+        if (profiler != null) {
+            profiler.sampler.interrupt();
+            try {
+                profiler.sampler.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            profiler = null;
+        }
+        if (enabled) {
+            JairusUnitScriptCache.clear();
+            final JairusUnitProfiler p = new JairusUnitProfiler(interval);
+            p.sampler = new Thread("jairusunit-profiler") {
+                @Override
+                public void run() {
+                    p.sample();
+                }
+            };
+            p.sampler.setDaemon(true);
+            p.sampler.start();
+            profiler = p;
+        }
+        Context cx = Context.getCurrentContext();
+        if (cx != null) {
+            configure(cx);
+        }
+    }
+
+    /** @return true if profiling */
+    public static boolean isEnabled() {
+        return profiler != null;
+    }
+
+    /**
+     * Attach profiler to context if profiling, wrapping any debugger
+     * attached by {@link JairusUnitCoverage#configure(Context)}.  Called by
+     * {@link JairusUnitContextFactory} for each new context.
+     * @param cx context
+     */
+    public static void configure(Context cx) {
+        if (profiler != null && !(cx.getDebugger() instanceof Hook)) {
+            // profile all scripts, not just those covered
+            Object data = cx.getDebuggerContextData();
+            if (cx.getDebugger() == null) {
+                data = cx.getOptimizationLevel();
+            }
+            cx.setGeneratingDebug(true);
+            cx.setOptimizationLevel(-1);
+            cx.setDebugger(new Hook(cx.getDebugger()), data);
+        } else if (profiler == null && cx.getDebugger() instanceof Hook) {
+            Debugger delegate = ((Hook) cx.getDebugger()).delegate;
+            Object data = cx.getDebuggerContextData();
+            cx.setDebugger(delegate, delegate == null ? null : data);
+            if (delegate == null) {
+                cx.setOptimizationLevel((Integer) data);
+            }
+        }
+    }
+
+    /**
+     * Set test file for samples of javascript running on current thread.
+     * @param file name of test file, or null when file finishes
+     */
+    public static void setFile(String file) {
+        if (profiler != null) {
+            Stack s = stack();
+            s.file = file;
+            s.depth = 0;
+        }
+    }
+
+    /** @return test file for current thread or null */
+    public static String getFile() {
+        Stack s = stack.get();
+        return s == null ? null : s.file;
+    }
+
+    // stack for current thread, registered with profiler for sampling
+    private static Stack stack() {
+        Stack s = stack.get();
+        if (s == null) {
+            s = new Stack();
+            stack.set(s);
+        }
+        JairusUnitProfiler p = profiler;
+        if (p != null && s.registered != p) {
+            s.registered = p;
+            p.stacks.put(Thread.currentThread(), s);
+        }
+        return s;
+    }
+
+    // name of function with file and first line, e.g. 'add (calc.js:3)'
+    private static String name(DebuggableScript fnOrScript) {
+        JairusUnitProfiler p = profiler;
+        String name = p == null ? null : p.names.get(fnOrScript);
+        if (name != null) {
+            return name;
+        }
+        String file = String.valueOf(fnOrScript.getSourceName());
+        file = file.substring(file.lastIndexOf('/') + 1);
+        int line = Integer.MAX_VALUE;
+        for (int l : fnOrScript.getLineNumbers()) {
+            line = Math.min(line, l);
+        }
+        String fn = fnOrScript.isFunction() ? fnOrScript.getFunctionName() : "(script)";
+        if (fn == null || fn.length() == 0) {
+            fn = "(anonymous)";
+        }
+        // ';' separates frames in collapsed stacks
+        name = (fn + " (" + file + (line == Integer.MAX_VALUE ? "" : ":" + line) + ")").replace(';', ',');
+        if (p != null) {
+            p.names.put(fnOrScript, name);
+        }
+        return name;
+    }
+
+    // sample all threads until interrupted
+    private void sample() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            for (Map.Entry<Thread, Stack> entry : stacks.entrySet()) {
+                if (!entry.getKey().isAlive()) {
+                    stacks.remove(entry.getKey());
+                    continue;
+                }
+                Stack s = entry.getValue();
+                String file = s.file;
+                String collapsed = s.sample();
+                if (collapsed == null) {
+                    continue;
+                }
+                synchronized (profiles) {
+                    Map<String, Integer> profile = profiles.get(file);
+                    if (profile == null) {
+                        profile = new HashMap<String, Integer>();
+                        profiles.put(file, profile);
+                    }
+                    increment(profile, collapsed, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write collapsed stacks for test file and add its samples to the
+     * summary.  Does nothing if not profiling.
+     * @param file name of test file
+     * @param out file to write
+     * @throws IOException if error writing
+     */
+    public static void write(String file, File out) throws IOException {
+        JairusUnitProfiler p = profiler;
+        if (p != null) {
+            p.writeFile(file, out);
+        }
+    }
+
+    private void writeFile(String file, File out) throws IOException {
+        Map<String, Integer> profile;
+        synchronized (profiles) {
+            profile = profiles.remove(file);
+            if (profile == null) {
+                profile = new HashMap<String, Integer>();
+            }
+            for (Map.Entry<String, Integer> entry : profile.entrySet()) {
+                String[] frames = entry.getKey().split(";");
+                increment(self, frames[frames.length - 1], entry.getValue());
+                // count recursive functions once per sample
+                Set<String> seen = new HashSet<String>();
+                for (String frame : frames) {
+                    if (seen.add(frame)) {
+                        increment(total, frame, entry.getValue());
+                    }
+                }
+            }
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+        try {
+            for (Map.Entry<String, Integer> entry : sorted(profile)) {
+                pw.print(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            pw.close();
+        }
+    }
+
+    /**
+     * Print functions with most samples at top of stack and anywhere in
+     * stack for all files written so far.  Does nothing if not profiling.
+     * @param out stream to print to
+     * @param top number of functions to print
+     */
+    public static void report(PrintStream out, int top) {
+        JairusUnitProfiler p = profiler;
+        if (p == null) {
+            return;
+        }
+        synchronized (p.profiles) {
+            print(out, "Top functions by self time:", sorted(p.self), top, p.interval);
+            print(out, "Top functions by total time:", sorted(p.total), top, p.interval);
+        }
+    }
+
+    private static void print(PrintStream out, String title, List<Map.Entry<String, Integer>> entries,
+            int top, long interval) {
+        out.println(title);
+        for (Map.Entry<String, Integer> entry : entries.subList(0, Math.min(top, entries.size()))) {
+            out.println(format("%8.3f s %6d samples  %s", entry.getValue() * interval / 1000.0,
+                    entry.getValue(), entry.getKey()));
+        }
+    }
+
+    private static void increment(Map<String, Integer> map, String key, int n) {
+        Integer count = map.get(key);
+        map.put(key, count == null ? n : count + n);
+    }
+
+    // most samples first
+    private static List<Map.Entry<String, Integer>> sorted(Map<String, Integer> map) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                int result = b.getValue().compareTo(a.getValue());
+                return result != 0 ? result : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return entries;
+    }
+}
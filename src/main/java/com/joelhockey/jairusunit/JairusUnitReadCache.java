@@ -0,0 +1,172 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Optional cache of file contents returned by
+ * {@link JairusUnitScope#readFile(String, String)}, shared by all files and
+ * threads in the JVM.  Contents are keyed by resolved url and charset and
+ * are only returned if the last-modified time of the url is unchanged.
+ * Least recently used contents are evicted once the total size (2 bytes
+ * for each char) exceeds the configured budget.  Cached contents are
+ * immutable strings, so they can be returned to any thread.  Hits, misses
+ * and evictions are counted in {@link JairusUnitMetrics}.
+ * @author Joel Hockey
+ */
+public class JairusUnitReadCache {
+    private static long maxBytes;
+    private static long bytes;
+    // access order so iteration starts at least recently used
+    private static LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private static class Entry {
+        long lastModified;
+        String content;
+        Entry(long lastModified, String content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Set total size of cached contents, evicting if current contents are
+     * larger.  Contents are kept if the budget is unchanged so that a daemon
+     * keeps its cache between runs.
+     * @param max max bytes, 0 to disable and clear cache
+     */
+    public static synchronized void setMaxBytes(long max) {
+        maxBytes = max;
+        evict(0);
+    }
+
+    /** @return max bytes, 0 if cache is disabled */
+    public static synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return true if cache is enabled */
+    public static synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /** @return current size of cached contents in bytes */
+    public static synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return cached contents.
+     * @param url resolved url of file
+     * @param charset charset name, null for platform default
+     * @param lastModified current last-modified time of url
+     * @return contents or null if not cached or file has changed
+     */
+    public static synchronized String get(URL url, String charset, long lastModified) {
+        String key = key(url, charset);
+        Entry entry = cache.get(key);
+        if (entry != null && entry.lastModified == lastModified) {
+            JairusUnitMetrics.increment(JairusUnitMetrics.READ_CACHE_HITS);
+            return entry.content;
+        }
+        if (entry != null) {
+            cache.remove(key);
+            bytes -= size(entry.content);
+        }
+        JairusUnitMetrics.increment(JairusUnitMetrics.READ_CACHE_MISSES);
+        return null;
+    }
+
+    /**
+     * Cache contents, evicting least recently used contents if needed.
+     * Contents larger than the whole budget are not cached.
+     * @param url resolved url of file
+     * @param charset charset name, null for platform default
+     * @param lastModified last-modified time of url before it was read
+     * @param content file contents
+     */
+    public static synchronized void put(URL url, String charset, long lastModified, String content) {
+        long size = size(content);
+        if (size > maxBytes) {
+            return;
+        }
+        Entry old = cache.put(key(url, charset), new Entry(lastModified, content));
+        if (old != null) {
+            bytes -= size(old.content);
+        }
+        evict(size);
+        bytes += size;
+    }
+
+    /**
+     * Parse size with optional 'k', 'm' or 'g' suffix.
+     * @param size size such as '512m'
+     * @return size in bytes
+     */
+    public static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (s.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (s.endsWith("m")) {
+            multiplier = 1024L * 1024;
+        } else if (s.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * multiplier;
+    }
+
+    // remove least recently used until there is room for size more bytes
+    private static void evict(long size) {
+        for (Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+                it.hasNext() && bytes + size > maxBytes; ) {
+            bytes -= size(it.next().getValue().content);
+            it.remove();
+            JairusUnitMetrics.increment(JairusUnitMetrics.READ_CACHE_EVICTIONS);
+        }
+    }
+
+    // canonical charset name so aliases such as 'utf8' share entries
+    private static String key(URL url, String charset) {
+        String name = charset;
+        try {
+            name = charset == null ? Charset.defaultCharset().name() : Charset.forName(charset).name();
+        } catch (IllegalArgumentException iae) {} // unknown charset, reported when file is read
+        return name + " " + url;
+    }
+
+    private static long size(String content) {
+        return 2L * content.length();
+    }
+}
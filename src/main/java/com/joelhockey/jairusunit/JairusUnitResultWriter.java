@@ -26,8 +26,15 @@ package com.joelhockey.jairusunit;
 
 import static java.lang.String.format;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -43,16 +50,51 @@ import org.mozilla.javascript.NativeJavaObject;
 
 /**
  * Writes ant junit style 'summary', 'plain' and 'xml' reports.
+ * By default all results are held in memory and reports are written
+ * at {@link #endTestSuite(String)}.  Writers created with
+ * {@link #JairusUnitResultWriter(PrintStream, File, File)} stream each
+ * test to the reports as it finishes and only keep counts in memory.
  * @author Joel Hockey
  */
 public class JairusUnitResultWriter implements TestListener {
+    // space reserved in streaming reports for counts written at end
+    private static final int XML_COUNTS_WIDTH = 128;
+    private static final int PLAIN_COUNTS_WIDTH = 96;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Write system properties into every xml report (default). */
+    public static final String PROPERTIES_SUITE = "suite";
+    /** Render system properties once per JVM and reuse in every xml report. */
+    public static final String PROPERTIES_ONCE = "once";
+    /** Leave properties out of xml reports, see {@link #writePropertiesFile(File)}. */
+    public static final String PROPERTIES_FILE = "file";
+
+    private static String propertiesMode = PROPERTIES_SUITE;
+    private static byte[] cachedProperties;
+
     private PrintStream summary;
     private PrintStream plain;
     private PrintStream xml;
 
+    // streaming
+    private boolean streaming;
+    private FileOutputStream plainOut;
+    private FileOutputStream xmlOut;
+    private Writer plainWriter;
+    private Writer xmlWriter;
+    private long plainCountsPos;
+    private long xmlCountsPos;
+    private int testCount;
+    private int failureCount;
+    private int errorCount;
+    private Throwable testFailure;
+    private Throwable testError;
+
     private List<String> tests = new ArrayList<String>();
+    // nanos of each test
     private Map<String, Long> testTimes = new HashMap<String, Long>();
-    private Map<String, Throwable> failures = new HashMap<String, Throwable>();
+    // failures only keep filtered frames until reports are written
+    private Map<String, JairusUnitStackTrace> failures = new HashMap<String, JairusUnitStackTrace>();
     private Map<String, Throwable> errors = new HashMap<String, Throwable>();
     private long startSuite;
     private long endSuite;
@@ -60,7 +102,7 @@ public class JairusUnitResultWriter implements TestListener {
     private long endTest;
 
     public JairusUnitResultWriter() {
-        this(System.out, null, null);
+        this(System.out, (PrintStream) null, (PrintStream) null);
     }
     public JairusUnitResultWriter(PrintStream summary, PrintStream plain, PrintStream xml) {
         this.summary = summary;
@@ -68,24 +110,258 @@ public class JairusUnitResultWriter implements TestListener {
         this.xml = xml;
     }
 
+    /**
+     * Create streaming writer.  Each test is appended to the plain and
+     * xml files when it ends.  Counts are written into space reserved
+     * at the start of each file when the suite ends, and the files are closed.
+     * @param summary stream for summary
+     * @param plainFile file for plain report
+     * @param xmlFile file for xml report
+     * @throws IOException if error opening files
+     */
+    public JairusUnitResultWriter(PrintStream summary, File plainFile, File xmlFile) throws IOException {
+        this.summary = summary;
+        this.streaming = true;
+        plainOut = new FileOutputStream(plainFile);
+        plainWriter = new BufferedWriter(new OutputStreamWriter(plainOut, "UTF-8"), BUFFER_SIZE);
+        xmlOut = new FileOutputStream(xmlFile);
+        xmlWriter = new BufferedWriter(new OutputStreamWriter(xmlOut, "UTF-8"), BUFFER_SIZE);
+    }
+
+    /**
+     * Set how system properties are written to xml reports.
+     * @param mode one of {@link #PROPERTIES_SUITE}, {@link #PROPERTIES_ONCE}
+     * or {@link #PROPERTIES_FILE}
+     */
+    public static void setPropertiesMode(String mode) {
+        if (!PROPERTIES_SUITE.equals(mode) && !PROPERTIES_ONCE.equals(mode) && !PROPERTIES_FILE.equals(mode)) {
+            throw new IllegalArgumentException("Invalid properties mode: " + mode);
+        }
+        propertiesMode = mode;
+    }
+
+    /**
+     * Write system properties to a single xml file rather than
+     * into each report when using {@link #PROPERTIES_FILE}.
+     * @param file file to write
+     * @throws IOException if error writing
+     */
+    public static void writePropertiesFile(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n".getBytes("UTF-8"));
+            out.write(properties());
+        } finally {
+            out.close();
+        }
+    }
+
+    // rendered and escaped properties, cached unless mode is suite
+    private static synchronized byte[] properties() throws IOException {
+        if (cachedProperties != null && !PROPERTIES_SUITE.equals(propertiesMode)) {
+            return cachedProperties;
+        }
+        StringWriter sw = new StringWriter(16 * 1024);
+        sw.write("  <properties>\n");
+        for (Entry<Object, Object> prop : System.getProperties().entrySet()) {
+            sw.write("    <property value=\"");
+            esc(sw, prop.getValue().toString());
+            sw.write("\" name=\"");
+            esc(sw, prop.getKey().toString());
+            sw.write("\"/>\n");
+        }
+        sw.write("  </properties>\n");
+        cachedProperties = sw.toString().getBytes("UTF-8");
+        return cachedProperties;
+    }
+
     // xml escape
-    private static String esc(String s) {
+    static String esc(String s) {
         if (s == null) { return ""; }
-        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "apos;");
+        StringWriter sw = new StringWriter(s.length() + 16);
+        try {
+            esc(sw, s);
+        } catch (IOException ioe) {} // StringWriter doesn't throw
+        return sw.toString();
+    }
+
+    // xml escape in single pass directly to output
+    private static void esc(Writer out, String s) throws IOException {
+        if (s == null) { return; }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&': out.write("&amp;"); break;
+            case '<': out.write("&lt;"); break;
+            case '>': out.write("&gt;"); break;
+            case '"': out.write("&quot;"); break;
+            case '\'': out.write("&apos;"); break;
+            default: out.write(c);
+            }
+        }
+    }
+
+    // same as format("%.3f", nanos / 1e9) without locale or formatter
+    private static String seconds(long nanos) {
+        long millis = (nanos + 500000) / 1000000;
+        StringBuilder sb = new StringBuilder().append(millis / 1000).append('.');
+        long frac = millis % 1000;
+        if (frac < 100) { sb.append('0'); }
+        if (frac < 10) { sb.append('0'); }
+        return sb.append(frac).toString();
+    }
+
+    // pad with spaces to width
+    private static byte[] pad(String s, int width) throws IOException {
+        StringBuilder sb = new StringBuilder(width).append(s);
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+        return sb.toString().getBytes("UTF-8");
     }
 
     public void startTestSuite(String name) {
         if (summary != null) { summary.println(format("Running %s", name)); }
         if (plain != null) { plain.println("Testsuite: " + name); }
-        startSuite = System.currentTimeMillis();
+        if (streaming) {
+            try {
+                startStreaming(name);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+        startSuite = System.nanoTime();
+    }
+
+    // write report headers with space for counts
+    private void startStreaming(String name) throws IOException {
+        String plainHeader = "Testsuite: " + name + "\n";
+        plainWriter.write(plainHeader);
+        plainCountsPos = plainHeader.getBytes("UTF-8").length;
+        plainWriter.write(new String(pad("", PLAIN_COUNTS_WIDTH), "UTF-8"));
+        plainWriter.write("\n\n");
+
+        StringWriter xmlHeader = new StringWriter();
+        xmlHeader.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<testsuite name=\"");
+        esc(xmlHeader, name);
+        xmlHeader.write('"');
+        xmlWriter.write(xmlHeader.toString());
+        xmlCountsPos = xmlHeader.toString().getBytes("UTF-8").length;
+        xmlWriter.write(new String(pad("", XML_COUNTS_WIDTH), "UTF-8"));
+        xmlWriter.write(">\n");
+        if (!PROPERTIES_FILE.equals(propertiesMode)) {
+            xmlWriter.flush();
+            xmlOut.write(properties());
+        }
+    }
+
+    // write test to reports as soon as it ends
+    private void streamTest(String test, long nanos) throws IOException {
+        testCount++;
+        plainWriter.write("Testcase: ");
+        plainWriter.write(test);
+        plainWriter.write(" took ");
+        plainWriter.write(seconds(nanos));
+        plainWriter.write(" sec\n");
+
+        xmlWriter.write("  <testcase classname=\"");
+        esc(xmlWriter, test);
+        xmlWriter.write("\" name=\"");
+        esc(xmlWriter, test);
+        xmlWriter.write("\" time=\"");
+        xmlWriter.write(seconds(nanos));
+        xmlWriter.write('"');
+
+        Throwable t = testFailure != null ? testFailure : testError;
+        if (t == null) {
+            xmlWriter.write("/>\n");
+            return;
+        }
+
+        String failureOrError;
+        String stack;
+        if (testFailure != null) {
+            failureCount++;
+            failureOrError = "failure";
+            stack = JairusUnit.filterStackTrace(t); // filter failures
+            plainWriter.write("\tFAILED\n");
+            if (summary != null) {
+                summary.println("Test " + test + "\n\tFAILED: " + t.getMessage());
+            }
+        } else {
+            errorCount++;
+            failureOrError = "error";
+            stack = JairusUnit.dumpError(null, t);  // full dump for errors
+            plainWriter.write("\tCaused an ERROR\n");
+            if (summary != null) {
+                summary.println("Test " + test + "\n\tERROR: " + stack);
+            }
+        }
+        plainWriter.write(stack);
+        plainWriter.write("\n");
+
+        xmlWriter.write(">\n    <");
+        xmlWriter.write(failureOrError);
+        xmlWriter.write(" type=\"");
+        esc(xmlWriter, t.getClass().getName());
+        xmlWriter.write("\" message=\"");
+        esc(xmlWriter, t.getMessage());
+        xmlWriter.write("\">");
+        esc(xmlWriter, stack);
+        xmlWriter.write("</");
+        xmlWriter.write(failureOrError);
+        xmlWriter.write(">\n  </testcase>\n");
+    }
+
+    // close reports and write counts into reserved space
+    private void endStreaming() throws IOException {
+        String seconds = seconds(endSuite - startSuite);
+        String counts = "Tests run: " + testCount + ", Failures: " + failureCount
+                + ", Errors: " + errorCount + ", Time elapsed: " + seconds;
+        if (summary != null) { summary.println(counts); }
+        plainWriter.flush();
+        plainOut.getChannel().write(ByteBuffer.wrap(pad(counts, PLAIN_COUNTS_WIDTH)), plainCountsPos);
+        plainWriter.close();
+
+        xmlWriter.write("</testsuite>");
+        xmlWriter.flush();
+        xmlOut.getChannel().write(ByteBuffer.wrap(pad(" skipped=\"0\" tests=\"" + testCount + "\" errors=\""
+                + errorCount + "\" time=\"" + seconds + "\" failures=\"" + failureCount + "\"",
+                XML_COUNTS_WIDTH)), xmlCountsPos);
+        xmlWriter.close();
+    }
+
+    /**
+     * Close report files of a streaming writer.  Files are already closed
+     * by {@link #endTestSuite(String)}, this closes them if the suite was
+     * not ended because of an error.  Does nothing if not streaming.
+     * @throws IOException if error closing files
+     */
+    public void close() throws IOException {
+        if (streaming) {
+            try {
+                plainWriter.close();
+            } finally {
+                xmlWriter.close();
+            }
+        }
     }
 
     public void endTestSuite(String name) {
-        endSuite = System.currentTimeMillis();
+        endSuite = System.nanoTime();
+        if (streaming) {
+            try {
+                endStreaming();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            return;
+        }
+
         // summary
         if (summary != null) {
-            summary.println(format("Tests run: %d, Failures: %d, Errors: %d, Time elapsed: %.3f",
-                    tests.size(), failures.size(), errors.size(), (endSuite - startSuite) / 1000.0));
+            summary.println(format("Tests run: %d, Failures: %d, Errors: %d, Time elapsed: %s",
+                    tests.size(), failures.size(), errors.size(), seconds(endSuite - startSuite)));
             for (String test : tests) {
                 if (failures.containsKey(test)) {
                     summary.println(format("Test %s\n\tFAILED: %s", test, failures.get(test).getMessage()));
@@ -98,13 +374,13 @@ public class JairusUnitResultWriter implements TestListener {
 
         // plain
         if (plain != null) {
-            plain.println(format("Tests run: %d, Failures: %d, Errors: %d, Time elapsed: %.3f\n",
-                    tests.size(), failures.size(), errors.size(), (endSuite - startSuite) / 1000.0));
+            plain.println(format("Tests run: %d, Failures: %d, Errors: %d, Time elapsed: %s\n",
+                    tests.size(), failures.size(), errors.size(), seconds(endSuite - startSuite)));
             for (String test : tests) {
-                plain.println(format("Testcase: %s took %.3f sec", test, testTimes.get(test) / 1000.0));
+                plain.println(format("Testcase: %s took %s sec", test, seconds(testTimes.get(test))));
                 if (failures.containsKey(test)) {
                     plain.println("\tFAILED");
-                    plain.println(JairusUnit.filterStackTrace(failures.get(test)));
+                    plain.println(failures.get(test).toString());
                 }
                 if (errors.containsKey(test)) {
                     plain.println("\tCaused an ERROR");
@@ -116,34 +392,33 @@ public class JairusUnitResultWriter implements TestListener {
         // xml
         if (xml != null) {
             xml.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
-            xml.println(format("<testsuite name=\"%s\" skipped=\"0\" tests=\"%d\" errors=\"%d\" time=\"%.3f\" failures=\"%d\">",
-                    esc(name), tests.size(), errors.size(), (endSuite - startSuite) / 1000.0, failures.size()));
-            xml.println(format("  <properties>"));
-            for (Entry<Object, Object> prop : System.getProperties().entrySet()) {
-                xml.println(format("    <property value=\"%s\" name=\"%s\"/>",
-                        esc(prop.getValue().toString()), esc(prop.getKey().toString())));
+            xml.println(format("<testsuite name=\"%s\" skipped=\"0\" tests=\"%d\" errors=\"%d\" time=\"%s\" failures=\"%d\">",
+                    esc(name), tests.size(), errors.size(), seconds(endSuite - startSuite), failures.size()));
+            if (!PROPERTIES_FILE.equals(propertiesMode)) {
+                try {
+                    xml.write(properties());
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
             }
-            xml.println(format("  </properties>"));
             for (String test : tests) {
-                xml.print(format("  <testcase classname=\"%s\" name=\"%s\" time=\"%.3f\"",
-                        test, test, testTimes.get(test) / 1000.0));
-                Throwable t = failures.get(test);
-                String failureOrError = "failure";
-                String stack = JairusUnit.filterStackTrace(t); // filter failures
-                if (t == null) {
-                    t = errors.get(test);
-                    failureOrError = "error";
-                    stack = JairusUnit.dumpError(null, t);  // full dump for errors
-                }
-
-                if (t == null) {
-                    xml.println("/>");
-                } else {
+                xml.print(format("  <testcase classname=\"%s\" name=\"%s\" time=\"%s\"",
+                        test, test, seconds(testTimes.get(test))));
+                JairusUnitStackTrace failure = failures.get(test);
+                Throwable error = errors.get(test);
+                if (failure != null) {
+                    xml.println(">");
+                    xml.println(format("    <failure type=\"%s\" message=\"%s\">%s</failure>",
+                            esc(failure.getClassName()), esc(failure.getMessage()), esc(failure.toString())));
+                    xml.println(format("  </testcase>"));
+                } else if (error != null) {
                     xml.println(">");
-                    xml.println(format("    <%s type=\"%s\" message=\"%s\">%s</%s>",
-                            failureOrError, esc(t.getClass().getName()), esc(t.getMessage()),
-                            esc(stack), failureOrError));
+                    xml.println(format("    <error type=\"%s\" message=\"%s\">%s</error>",
+                            esc(error.getClass().getName()), esc(error.getMessage()),
+                            esc(JairusUnit.dumpError(null, error))));  // full dump for errors
                     xml.println(format("  </testcase>"));
+                } else {
+                    xml.println("/>");
                 }
             }
             xml.print(format("</testsuite>"));
@@ -151,12 +426,30 @@ public class JairusUnitResultWriter implements TestListener {
     }
 
     public void startTest(Test test) {
-        tests.add(test.toString());
-        startTest = System.currentTimeMillis();
+        if (streaming) {
+            testFailure = null;
+            testError = null;
+        } else {
+            tests.add(test.toString());
+        }
+        startTest = System.nanoTime();
     }
     public void endTest(Test test) {
-        endTest = System.currentTimeMillis();
-        testTimes.put(test.toString(), (endTest - startTest));
+        endTest = System.nanoTime();
+        // use time from when test ran if results are replayed
+        long nanos = endTest - startTest;
+        if (test instanceof JairusUnitParallelSuite.TimedTest) {
+            nanos = ((JairusUnitParallelSuite.TimedTest) test).getNanos();
+        }
+        if (streaming) {
+            try {
+                streamTest(test.toString(), nanos);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            return;
+        }
+        testTimes.put(test.toString(), nanos);
     }
     public void addError(Test test, Throwable t) {
         StringWriter sw = new StringWriter();
@@ -178,9 +471,17 @@ public class JairusUnitResultWriter implements TestListener {
                 }
             }
         }
-        errors.put(test.toString(), t);
+        if (streaming) {
+            testError = t;
+        } else {
+            errors.put(test.toString(), t);
+        }
     }
     public void addFailure(Test test, AssertionFailedError t) {
-        failures.put(test.toString(), t);
+        if (streaming) {
+            testFailure = t;
+        } else {
+            failures.put(test.toString(), new JairusUnitStackTrace(t));
+        }
     }
 }
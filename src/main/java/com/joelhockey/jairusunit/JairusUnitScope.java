@@ -24,21 +24,42 @@
 
 package com.joelhockey.jairusunit;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.IllegalFormatException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
+import org.mozilla.javascript.FunctionObject;
 import org.mozilla.javascript.ImporterTopLevel;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
 
 /**
  * Rhino global scope for JairusUnit.
@@ -46,52 +67,167 @@ import org.mozilla.javascript.ScriptableObject;
  */
 public class JairusUnitScope extends ImporterTopLevel {
     private static final long serialVersionUID = 0x37A5FBB0114CDFECL;
+    /** Prefix of paths and search path entries found on the classpath. */
+    public static final String CLASSPATH = "classpath:";
+    // urls found by resolve keyed by path, NOT_FOUND for misses
+    private static final ConcurrentMap<String, Object> RESOLVED = new ConcurrentHashMap<String, Object>();
+    private static final Object NOT_FOUND = new Object();
+    private static volatile List<String> searchPath;
+
+    // timeouts in millis and deadline as System.nanoTime, 0 for none
+    private long testTimeout;
+    private long fileTimeout;
+    private long fileDeadline;
+    // true if shared by all files, see JairusUnitOptimization
+    private boolean shared;
+    // urls of all files loaded or read into this scope
+    private Set<String> dependencies = Collections.synchronizedSet(new LinkedHashSet<String>());
 
     public JairusUnitScope() {
+        this(false);
+    }
+
+    /**
+     * Create top-level scope with standard objects and JairusUnit functions.
+     * @param sealed if true, standard objects are sealed
+     */
+    public JairusUnitScope(boolean sealed) {
         Context cx = Context.enter();
-        initStandardObjects(cx, false);
+        initStandardObjects(cx, sealed);
         String[] names = {
             "load",
+            "mapFile",
             "print",
-            "readFile",
         };
         defineFunctionProperties(names, JairusUnitScope.class, ScriptableObject.DONTENUM);
+        // optional charset so defined by static varargs methods
+        defineFunction("readFile", "jsReadFile");
+        defineFunction("readLines", "jsReadLines");
+        JairusUnitAssert.install(this);
         Context.exit();
      }
 
+    // define javascript function implemented by static method with
+    // signature (Context, Scriptable, Object[], Function)
+    private void defineFunction(String name, String methodName) {
+        try {
+            Method method = JairusUnitScope.class.getMethod(methodName,
+                    Context.class, Scriptable.class, Object[].class, Function.class);
+            defineProperty(name, new FunctionObject(name, method, this), ScriptableObject.DONTENUM);
+        } catch (NoSuchMethodException nsme) {
+            throw new RuntimeException(nsme);
+        }
+    }
+
+    /**
+     * Create cheap child scope whose prototype is the given shared scope.
+     * Standard objects and functions are inherited from the shared scope
+     * and any new globals are defined in the child.  The child has its own
+     * 'importPackage' and 'importClass' so imports are also kept in the
+     * child rather than the sealed shared scope.
+     * @param shared shared scope created with {@link #createSharedScope(List)}
+     */
+    public JairusUnitScope(JairusUnitScope shared) {
+        setPrototype(shared);
+        setParentScope(null);
+        defineFunction("importPackage", "jsImportPackage");
+        defineFunction("importClass", "jsImportClass");
+        dependencies.addAll(shared.getDependencies());
+    }
+
+    /**
+     * Import package into the child scope which defined this function.
+     * Calls 'JavaImporter.prototype.importPackage' with the child as 'this',
+     * since the global function of the shared scope always imports into
+     * the shared scope.
+     */
+    public static Object jsImportPackage(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        return importer(cx, funObj, "importPackage", args);
+    }
+
+    /** Import class into the child scope which defined this function. */
+    public static Object jsImportClass(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
+        return importer(cx, funObj, "importClass", args);
+    }
+
+    private static Object importer(Context cx, Function funObj, String name, Object[] args) {
+        Scriptable scope = funObj.getParentScope();
+        Scriptable proto = ScriptableObject.getClassPrototype(scope, "JavaImporter");
+        Function f = (Function) ScriptableObject.getProperty(proto, name);
+        return f.call(cx, scope, scope, args);
+    }
+
+    /**
+     * Create sealed scope to be shared as prototype of each test file scope.
+     * Standard objects are initialised, 'jairusunit.js' and each of preloads
+     * are loaded, and then the scope is sealed so it can be safely used
+     * by multiple files and threads.  Note that objects defined by preloads
+     * are not sealed themselves.
+     * @param preloads libraries to load into shared scope
+     * @return sealed shared scope
+     * @throws IOException if error loading any file
+     */
+    public static JairusUnitScope createSharedScope(List<String> preloads) throws IOException {
+        JairusUnitScope shared = new JairusUnitScope(true);
+        shared.shared = true;
+        shared.load(CLASSPATH + "jairusunit.js");
+        for (String preload : preloads) {
+            shared.load(preload);
+        }
+        shared.sealObject();
+        return shared;
+    }
+
+    /**
+     * Set timeouts for tests in this scope.  The file deadline starts now.
+     * @param testTimeout default millis for each test, 0 for none
+     * @param fileTimeout millis for all tests in file, 0 for none
+     */
+    public void setTimeouts(long testTimeout, long fileTimeout) {
+        this.testTimeout = testTimeout;
+        this.fileTimeout = fileTimeout;
+        this.fileDeadline = fileTimeout > 0 ? System.nanoTime() + fileTimeout * 1000000 : 0;
+    }
+
+    /** @return default millis for each test, 0 for none */
+    public long getTestTimeout() { return testTimeout; }
+    /** @return millis for all tests in file, 0 for none */
+    public long getFileTimeout() { return fileTimeout; }
+    /** @return {@link System#nanoTime()} deadline for file, 0 for none */
+    public long getFileDeadline() { return fileDeadline; }
+
+    /**
+     * Return urls of all files loaded or read into this scope, including
+     * those loaded into the shared scope this scope was created from.
+     * @return urls in the order they were first used
+     */
+    public Set<String> getDependencies() {
+        synchronized (dependencies) {
+            return new LinkedHashSet<String>(dependencies);
+        }
+    }
+
     /**
      * Load file.  Tries to find file using absolute path, then
      * using classloader as relative file, then adds '/' to start of path
-     * and tries classloader again.
+     * and tries classloader again.  Compiled scripts are cached by
+     * {@link JairusUnitScriptCache} so each file is only compiled once,
+     * at the optimization level chosen by {@link JairusUnitOptimization}.
      * @param path path to file
      * @throws IOException if error finding, reading file
      */
     public void load(String path) throws IOException {
-        InputStream ins;
+        URL url = resolve(path);
 
-        // if file exists, load
-        URL url = null;
-        File f = new File(path);
-        if (f.exists()) {
-            url = f.toURL();
-        // else, try a resource
-        } else {
-            url = JairusUnitScope.class.getResource(path);
-            if (url == null && !path.startsWith("/")) {
-                url = JairusUnitScope.class.getResource("/" + path);
-            }
-            if (url == null) {
-                throw new IOException("Could not find file: " + path);
-            }
-        }
-
-        Reader reader = new InputStreamReader(url.openStream());
+        // compiled scripts are cached and can be run against any scope
+        long start = JairusUnitMetrics.start();
         Context cx = Context.enter();
         try {
-            cx.evaluateReader(this, reader, url.toString(), 1, null);
+            Script script = JairusUnitScriptCache.getScript(cx, url, shared);
+            script.exec(cx, this);
         } finally {
             Context.exit();
-            reader.close();
+            JairusUnitMetrics.record(JairusUnitMetrics.LOAD, start);
         }
     }
 
@@ -130,35 +266,347 @@ public class JairusUnitScope extends ImporterTopLevel {
     }
 
     /**
-     * Returns file as string.  Tries to find file using absolute path, then
-     * using classloader as relative file, then adds '/' to start of path
-     * and tries classloader again.
+     * Find file.  Paths starting with {@value #CLASSPATH} are always found
+     * on the classpath.  If a search path is set, other paths are found
+     * as an existing absolute file, or else relative to each entry of the
+     * search path in order.  Otherwise tries the path as a file, then
+     * using classloader as relative file, then adds '/' to start of path and
+     * tries classloader again.
+     * <p>
+     * Results, including files not found, are cached until
+     * {@link #clearResolveCache()}, which must be called to find a file
+     * created after it was not found.  A cached local file is found again if
+     * it has since been deleted.  The url is recorded as a dependency of
+     * this scope.
      * @param path path to file
+     * @return url of file
+     * @throws IOException if file not found
+     */
+    public URL resolve(String path) throws IOException {
+        Object cached = RESOLVED.get(path);
+        URL url = cached instanceof URL ? (URL) cached : null;
+        File f = url != null ? toFile(url) : null;
+        if (cached == NOT_FOUND || (url != null && (f == null || f.exists()))) {
+            JairusUnitMetrics.increment(JairusUnitMetrics.RESOLVE_CACHE_HITS);
+        } else {
+            url = find(path);
+            RESOLVED.put(path, url == null ? NOT_FOUND : url);
+        }
+        if (url == null) {
+            throw new IOException("Could not find file: " + path);
+        }
+        dependencies.add(url.toString());
+        return url;
+    }
+
+    // find file without cache, returns null if not found
+    private static URL find(String path) throws IOException {
+        if (path.startsWith(CLASSPATH)) {
+            return JairusUnitScope.class.getResource("/" + stripSlash(path.substring(CLASSPATH.length())));
+        }
+        File f = new File(path);
+        List<String> entries = searchPath;
+        if (entries == null) {
+            if (f.exists()) {
+                return toURL(f);
+            }
+            URL url = JairusUnitScope.class.getResource(path);
+            if (url == null && !path.startsWith("/")) {
+                url = JairusUnitScope.class.getResource("/" + path);
+            }
+            return url;
+        }
+
+        if (f.isAbsolute() && f.exists()) {
+            return toURL(f);
+        }
+        String relative = stripSlash(path);
+        for (String entry : entries) {
+            if (entry.startsWith(CLASSPATH)) {
+                URL url = JairusUnitScope.class.getResource("/" + entry.substring(CLASSPATH.length()) + relative);
+                if (url != null) {
+                    return url;
+                }
+            } else {
+                File file = new File(entry, relative);
+                if (file.exists()) {
+                    return toURL(file);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String stripSlash(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * Set ordered search path used by {@link #resolve(String)} and clear
+     * resolve cache.  Each entry is either a directory, or
+     * {@value #CLASSPATH} followed by a resource prefix such as 'lib/'
+     * ('classpath:' alone is the root of the classpath).
+     * @param entries search path or null to use default lookup
+     */
+    public static void setSearchPath(List<String> entries) {
+        List<String> normalized = null;
+        if (entries != null) {
+            normalized = new ArrayList<String>();
+            for (String entry : entries) {
+                if (entry.startsWith(CLASSPATH)) {
+                    String prefix = stripSlash(entry.substring(CLASSPATH.length()));
+                    if (prefix.length() > 0 && !prefix.endsWith("/")) {
+                        prefix += "/";
+                    }
+                    entry = CLASSPATH + prefix;
+                }
+                normalized.add(entry);
+            }
+            normalized = Collections.unmodifiableList(normalized);
+        }
+        searchPath = normalized;
+        clearResolveCache();
+    }
+
+    /** Clear cached results of {@link #resolve(String)}. */
+    public static void clearResolveCache() {
+        RESOLVED.clear();
+    }
+
+    // escaped url of file, used for all local files so urls can be compared
+    static URL toURL(File f) throws MalformedURLException {
+        return f.toURI().toURL();
+    }
+
+    // local file for url, or null if not a file url
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (Exception e) {
+            // urls from File.toURL don't escape spaces
+            return new File(url.getPath());
+        }
+    }
+
+    // scope of file which called function
+    private static JairusUnitScope scope(Scriptable thisObj, Function funObj) {
+        Scriptable scope = ScriptableObject.getTopLevelScope(thisObj);
+        if (!(scope instanceof JairusUnitScope)) {
+            scope = ScriptableObject.getTopLevelScope(funObj);
+        }
+        return (JairusUnitScope) scope;
+    }
+
+    /**
+     * Javascript 'readFile(path, [charset])'.
+     * @see #readFile(String, String)
+     */
+    public static Object jsReadFile(Context cx, Scriptable thisObj, Object[] args, Function funObj) throws IOException {
+        String charset = args.length > 1 && args[1] != Undefined.instance ? Context.toString(args[1]) : null;
+        return scope(thisObj, funObj).readFile(Context.toString(args[0]), charset);
+    }
+
+    /**
+     * Javascript 'readLines(path, [charset])'.
+     * @see #readLines(String, String)
+     */
+    public static Object jsReadLines(Context cx, Scriptable thisObj, Object[] args, Function funObj) throws IOException {
+        String charset = args.length > 1 && args[1] != Undefined.instance ? Context.toString(args[1]) : null;
+        JairusUnitScope scope = scope(thisObj, funObj);
+        return Context.javaToJS(scope.readLines(Context.toString(args[0]), charset), scope);
+    }
+
+    /**
+     * Returns file as string decoded with platform default charset.
+     * @param path path to file, see {@link #resolve(String)}
      * @throws IOException if error finding, reading file
      */
     public String readFile(String path) throws IOException {
-        InputStream ins;
+        return readFile(path, null);
+    }
 
-        // if file exists, load
-        File f = new File(path);
-        if (f.exists()) {
-            ins = new FileInputStream(f);
-        // else, try a resource
+    /**
+     * Returns file as string.  Local files are read straight into an array
+     * of their exact size before decoding.  If {@link JairusUnitReadCache}
+     * is enabled, contents are shared with all other reads of the same
+     * unchanged file.
+     * @param path path to file, see {@link #resolve(String)}
+     * @param charset charset name, null for platform default
+     * @return file contents
+     * @throws IOException if error finding, reading file
+     */
+    public String readFile(String path, String charset) throws IOException {
+        URL url = resolve(path);
+        if (!JairusUnitReadCache.isEnabled()) {
+            return read(url, charset);
+        }
+        long lastModified = JairusUnitScriptCache.lastModified(url);
+        String content = JairusUnitReadCache.get(url, charset, lastModified);
+        if (content == null) {
+            content = read(url, charset);
+            JairusUnitReadCache.put(url, charset, lastModified, content);
+        }
+        return content;
+    }
+
+    // read and decode contents of url
+    private static String read(URL url, String charset) throws IOException {
+        byte[] buf;
+        File f = toFile(url);
+        if (f != null && f.length() <= Integer.MAX_VALUE) {
+            FileInputStream ins = new FileInputStream(f);
+            try {
+                buf = new byte[(int) f.length()];
+                int len = 0;
+                for (int l = 0; len < buf.length && (l = ins.read(buf, len, buf.length - len)) != -1; ) {
+                    len += l;
+                }
+                if (len < buf.length) {
+                    // file truncated since length was read
+                    byte[] b = new byte[len];
+                    System.arraycopy(buf, 0, b, 0, len);
+                    buf = b;
+                }
+            } finally {
+                ins.close();
+            }
         } else {
-            ins = JairusUnitScope.class.getResourceAsStream(path);
-            if (ins == null && !path.startsWith("/")) {
-                ins = JairusUnitScope.class.getResourceAsStream("/" + path);
+            InputStream ins = url.openStream();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] b = new byte[8192];
+                for (int l = 0; (l = ins.read(b)) != -1; ) {
+                    baos.write(b, 0, l);
+                }
+                buf = baos.toByteArray();
+            } finally {
+                ins.close();
+            }
+        }
+        JairusUnitMetrics.add(JairusUnitMetrics.BYTES_READ, buf.length);
+        return charset == null ? new String(buf) : new String(buf, charset);
+    }
+
+    /**
+     * Returns read-only view of file as bytes without copying it onto the
+     * heap.  Local files are memory-mapped, other urls such as files in
+     * jars are read into a heap buffer.  Javascript 'mapFile(path)'.
+     * @param path path to file, see {@link #resolve(String)}
+     * @return read-only buffer of file contents
+     * @throws IOException if error finding, reading file, or file is larger than 2GB
+     */
+    public ByteBuffer mapFile(String path) throws IOException {
+        URL url = resolve(path);
+        File f = toFile(url);
+        if (f == null) {
+            InputStream ins = url.openStream();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] b = new byte[8192];
+                for (int l = 0; (l = ins.read(b)) != -1; ) {
+                    baos.write(b, 0, l);
+                }
+                JairusUnitMetrics.add(JairusUnitMetrics.BYTES_READ, baos.size());
+                return ByteBuffer.wrap(baos.toByteArray()).asReadOnlyBuffer();
+            } finally {
+                ins.close();
+            }
+        }
+        if (f.length() > Integer.MAX_VALUE) {
+            throw new IOException("File too large to map: " + path);
+        }
+        FileInputStream ins = new FileInputStream(f);
+        try {
+            // mapping stays valid after channel is closed
+            return ins.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            ins.close();
+        }
+    }
+
+    /**
+     * Returns iterator which reads file one line at a time, so that large
+     * files can be processed without holding them in memory.  The file is
+     * closed when the last line is read, or by calling
+     * {@link LineIterator#close()}.  Javascript 'readLines(path, [charset])'
+     * <pre>
+     * var lines = readLines("data.csv", "UTF-8");
+     * while (lines.hasNext()) {
+     *     var fields = String(lines.next()).split(",");
+     * }
+     * </pre>
+     * @param path path to file, see {@link #resolve(String)}
+     * @param charset charset name, null for platform default
+     * @return line iterator
+     * @throws IOException if error finding, opening file
+     */
+    public LineIterator readLines(String path, String charset) throws IOException {
+        Charset cs = charset == null ? Charset.defaultCharset() : Charset.forName(charset);
+        // replace malformed input the same as readFile
+        CharsetDecoder decoder = cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        URL url = resolve(path);
+        File f = toFile(url);
+        ReadableByteChannel channel = f != null
+                ? new FileInputStream(f).getChannel() : Channels.newChannel(url.openStream());
+        // close file if reading first line fails
+        boolean opened = false;
+        try {
+            LineIterator lines = new LineIterator(new BufferedReader(Channels.newReader(channel, decoder, -1)));
+            opened = true;
+            return lines;
+        } finally {
+            if (!opened) {
+                channel.close();
+            }
+        }
+    }
+
+    /** Iterator over lines of a file returned by {@link JairusUnitScope#readLines(String, String)}. */
+    public static class LineIterator implements Iterator<String>, Closeable {
+        private BufferedReader reader;
+        private String next;
+
+        LineIterator(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            advance();
+        }
+
+        private void advance() throws IOException {
+            next = reader.readLine();
+            if (next == null) {
+                close();
             }
-            if (ins == null) {
-                throw new IOException("Could not find file: " + path);
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String line = next;
+            try {
+                advance();
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
             }
+            return line;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buf = new byte[4096];
-        for (int l = 0; (l = ins.read(buf)) != -1; ) {
-            baos.write(buf, 0, l);
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** Close file, safe to call more than once. */
+        public void close() throws IOException {
+            next = null;
+            reader.close();
         }
-        ins.close();
-        return new String(baos.toByteArray());
     }
 }
@@ -0,0 +1,324 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+/**
+ * In-process cache of compiled {@link Script} objects used by
+ * {@link JairusUnitScope#load(String)}.  Scripts are keyed by URL and
+ * are recompiled if the last-modified time of the URL or the
+ * optimization level of the current {@link Context} changes.  Compiled
+ * scripts do not hold a scope, so the same script can be executed against
+ * many scopes, including from different threads.
+ * <p>
+ * If a cache directory is set, the class files generated for each script
+ * are also stored on disk keyed by a hash of the Rhino version, optimization
+ * level, source name and content, and later runs define the classes from
+ * disk rather than parsing and compiling again.  The disk cache is only
+ * used when compiling to bytecode (optimization level 0 or more).
+ * <p>
+ * The optimization level of each script is chosen by
+ * {@link JairusUnitOptimization}.
+ * @author Joel Hockey
+ */
+public class JairusUnitScriptCache {
+    private static final String CLASS_PREFIX = "org.mozilla.javascript.gen.jairusunit_";
+    // reported by Rhino code generation when a method is too large for the jvm
+    private static final String METHOD_TOO_LARGE = "exceeds 64K limit";
+    private static ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private static File cacheDir;
+
+    private static class Entry {
+        long lastModified;
+        int optimizationLevel;
+        int size;
+        Script script;
+        Entry(long lastModified, int optimizationLevel, int size, Script script) {
+            this.lastModified = lastModified;
+            this.optimizationLevel = optimizationLevel;
+            this.size = size;
+            this.script = script;
+        }
+    }
+
+    /**
+     * Return compiled script for url, compiling and caching if it is not
+     * already cached or if cached version is out of date.
+     * @param cx current context used to compile
+     * @param url url of script
+     * @return compiled script
+     * @throws IOException if error reading script
+     */
+    public static Script getScript(Context cx, URL url) throws IOException {
+        return getScript(cx, url, false);
+    }
+
+    /**
+     * Return compiled script for url, compiling at the level chosen by
+     * {@link JairusUnitOptimization} and caching if it is not already cached
+     * or if cached version is out of date or was compiled at another level.
+     * @param cx current context used to compile
+     * @param url url of script
+     * @param shared true if loading into shared scope
+     * @return compiled script
+     * @throws IOException if error reading script
+     */
+    public static Script getScript(Context cx, URL url, boolean shared) throws IOException {
+        String key = url.toString();
+        // scripts not covered are compiled as normal
+        Object suspended = JairusUnitCoverage.suspend(cx, key);
+        try {
+            return getScript(cx, url, key, shared);
+        } finally {
+            JairusUnitCoverage.resume(cx, suspended);
+        }
+    }
+
+    private static Script getScript(Context cx, URL url, String key, boolean shared) throws IOException {
+        long lastModified = lastModified(url);
+        JairusUnitOptimization.loaded(key);
+        Entry entry = cache.get(key);
+        if (entry != null && entry.lastModified == lastModified
+                && entry.optimizationLevel == JairusUnitOptimization.level(cx, key, entry.size, shared)) {
+            JairusUnitMetrics.increment(JairusUnitMetrics.SCRIPT_CACHE_HITS);
+            return entry.script;
+        }
+
+        String source = readSource(url);
+        int optimizationLevel = JairusUnitOptimization.level(cx, key, source.length(), shared);
+        int contextLevel = cx.getOptimizationLevel();
+        cx.setOptimizationLevel(optimizationLevel);
+        long start = System.nanoTime();
+        String reason = null;
+        Script script;
+        try {
+            try {
+                script = compile(cx, source, key);
+            } catch (EvaluatorException ee) {
+                // interpret if generated method exceeds 64K limit
+                if (cx.getOptimizationLevel() < 0 || ee.details() == null || !ee.details().contains(METHOD_TOO_LARGE)) {
+                    throw ee;
+                }
+                reason = METHOD_TOO_LARGE;
+                cx.setOptimizationLevel(-1);
+                script = compile(cx, source, key);
+            }
+            JairusUnitOptimization.compiled(key, source.length(), cx.getOptimizationLevel(),
+                    System.nanoTime() - start, reason);
+        } finally {
+            cx.setOptimizationLevel(contextLevel);
+        }
+        cache.put(key, new Entry(lastModified, optimizationLevel, source.length(), script));
+        return script;
+    }
+
+    // compile at optimization level of cx using disk cache if set
+    private static Script compile(Context cx, String source, String sourceName) throws IOException {
+        if (cacheDir != null && cx.getOptimizationLevel() >= 0) {
+            return getDiskCachedScript(cx, source, sourceName);
+        }
+        long start = JairusUnitMetrics.start();
+        Script script = cx.compileString(source, sourceName, 1, null);
+        JairusUnitMetrics.record(JairusUnitMetrics.COMPILE, start);
+        JairusUnitMetrics.increment(JairusUnitMetrics.SCRIPTS_COMPILED);
+        return script;
+    }
+
+    /** Remove all cached scripts from memory.  Disk cache is unchanged. */
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Set directory for persistent bytecode cache.
+     * @param dir directory, created if it doesn't exist, null to disable
+     */
+    public static void setCacheDir(File dir) {
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        cacheDir = dir;
+    }
+
+    /** @return directory for persistent bytecode cache or null if not used */
+    public static File getCacheDir() {
+        return cacheDir;
+    }
+
+    // define script from classes in disk cache, compile and store if not found
+    private static Script getDiskCachedScript(Context cx, String source, String sourceName) throws IOException {
+        CompilerEnvirons env = new CompilerEnvirons();
+        env.initFromContext(cx);
+        String hash = hash(cx.getImplementationVersion() + "\0" + settings(env) + "\0" + sourceName + "\0" + source);
+        File file = new File(cacheDir, hash + ".classes");
+        Object[] classes = null;
+        if (file.exists()) {
+            try {
+                classes = readClasses(file);
+                Script script = defineScript(cx, classes);
+                JairusUnitMetrics.increment(JairusUnitMetrics.DISK_CACHE_HITS);
+                return script;
+            } catch (Exception e) {
+                // corrupt or incompatible cache file, compile again
+                file.delete();
+            }
+        }
+
+        long start = JairusUnitMetrics.start();
+        classes = new ClassCompiler(env).compileToClassFiles(source, sourceName, 1, CLASS_PREFIX + hash);
+        JairusUnitMetrics.record(JairusUnitMetrics.COMPILE, start);
+        JairusUnitMetrics.increment(JairusUnitMetrics.SCRIPTS_COMPILED);
+        writeClasses(file, classes);
+        try {
+            return defineScript(cx, classes);
+        } catch (Exception e) {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+    }
+
+    // define classes in new loader and return instance of main class
+    private static Script defineScript(Context cx, Object[] classes) throws Exception {
+        GeneratedClassLoader loader = cx.createClassLoader(cx.getApplicationClassLoader());
+        Class<?> main = null;
+        for (int i = 0; i < classes.length; i += 2) {
+            Class<?> c = loader.defineClass((String) classes[i], (byte[]) classes[i + 1]);
+            loader.linkClass(c);
+            if (main == null) {
+                main = c;
+            }
+        }
+        return (Script) main.getDeclaredConstructor().newInstance();
+    }
+
+    // compiler settings which change the generated classes
+    private static String settings(CompilerEnvirons env) {
+        return env.getLanguageVersion() + " " + env.getOptimizationLevel()
+                + " " + env.isGenerateDebugInfo() + " " + env.isUseDynamicScope()
+                + " " + env.isReservedKeywordAsIdentifier() + " " + env.isAllowMemberExprAsFunctionName()
+                + " " + env.isXmlAvailable() + " " + env.isGeneratingSource() + " " + env.isStrictMode()
+                + " " + env.reportWarningAsError() + " " + env.isGenerateObserverCount();
+    }
+
+    // classes file is count followed by name and bytes of each class
+    private static Object[] readClasses(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            Object[] classes = new Object[in.readInt() * 2];
+            for (int i = 0; i < classes.length; i += 2) {
+                classes[i] = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes[i + 1] = bytes;
+            }
+            return classes;
+        } finally {
+            in.close();
+        }
+    }
+
+    // write to temp file and rename so other processes never see partial file
+    private static void writeClasses(File file, Object[] classes) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(classes.length / 2);
+            for (int i = 0; i < classes.length; i += 2) {
+                byte[] bytes = (byte[]) classes[i + 1];
+                out.writeUTF((String) classes[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private static String readSource(URL url) throws IOException {
+        Reader reader = new InputStreamReader(JairusUnitMetrics.countBytes(url.openStream()));
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            for (int l = 0; (l = reader.read(buf)) != -1; ) {
+                sb.append(buf, 0, l);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // hex sha-1
+    static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // use file timestamp directly if possible, else ask the connection
+    static long lastModified(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            File f = new File(url.getPath());
+            // resource urls are escaped, File.toURL() urls are not
+            if (!f.exists()) {
+                try {
+                    f = new File(url.toURI());
+                } catch (Exception e) {} // ignore
+            }
+            return f.lastModified();
+        }
+        return url.openConnection().getLastModified();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filtered stack trace of a failure.  Frames from JUnit, reflection, Rhino
+ * internals, jairusunit.js and JairusUnit itself are removed by matching
+ * the class name of each {@link StackTraceElement} against
+ * {@link #FILTER_PREFIXES}, rather than rendering the full trace and matching
+ * each line.  Runs of frames repeated by recursion are collapsed, and
+ * frames beyond the configured maximum are dropped.  Only the filtered
+ * frames are kept, and text is rendered when {@link #toString()} is called,
+ * so holding many failures until a report is written stays cheap.
+ * Causes are included in the same format as
+ * {@link Throwable#printStackTrace()}.
+ * @author Joel Hockey
+ */
+public class JairusUnitStackTrace {
+    /** Class name prefixes of frames which are removed. */
+    public static final String[] FILTER_PREFIXES = {
+        "junit.",
+        "java.lang.reflect.",
+        "sun.reflect.",
+        "jdk.internal.reflect.",
+        "org.mozilla.javascript.Context",
+        "org.mozilla.javascript.FunctionObject",
+        "org.mozilla.javascript.Interpret",
+        "org.mozilla.javascript.JavaAdapter",
+        "org.mozilla.javascript.MemberBox",
+        "org.mozilla.javascript.NativeJava",
+        "org.mozilla.javascript.optimizer.",
+        "org.mozilla.javascript.Optimizer",
+        "org.mozilla.javascript.ScriptRuntime",
+        "org.apache.tools.ant.",
+        "com.joelhockey.jairusunit.",
+    };
+    // longest run of frames checked for repeats
+    private static final int MAX_RUN = 8;
+    private static final int MIN_REPEATS = 3;
+    // guard against circular causes
+    private static final int MAX_CAUSES = 32;
+
+    private static int maxFrames;
+
+    private String header;
+    private String className;
+    private String message;
+    private List<StackTraceElement[]> runs = new ArrayList<StackTraceElement[]>();
+    private List<Integer> repeats = new ArrayList<Integer>();
+    private int dropped;
+    private int common;
+    private JairusUnitStackTrace cause;
+
+    /**
+     * Set max frames kept for each throwable in chain, frames beyond max
+     * are replaced with a count.
+     * @param max max frames, 0 for no limit
+     */
+    public static void setMaxFrames(int max) {
+        maxFrames = max;
+    }
+
+    /** @return max frames kept, 0 for no limit */
+    public static int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Create filtered stack trace.
+     * @param t throwable
+     */
+    public JairusUnitStackTrace(Throwable t) {
+        this(t, null, 0);
+    }
+
+    private JairusUnitStackTrace(Throwable t, StackTraceElement[] enclosing, int depth) {
+        header = t.toString();
+        className = t.getClass().getName();
+        message = t.getMessage();
+        StackTraceElement[] trace = t.getStackTrace();
+
+        // frames in common with enclosing trace are shown as '... n more'
+        int end = trace.length;
+        if (enclosing != null) {
+            for (int i = enclosing.length - 1; end > 0 && i >= 0 && trace[end - 1].equals(enclosing[i]); i--) {
+                end--;
+            }
+            common = trace.length - end;
+        }
+        List<StackTraceElement> kept = new ArrayList<StackTraceElement>();
+        for (int i = 0; i < end; i++) {
+            if (!isFiltered(trace[i])) {
+                kept.add(trace[i]);
+            }
+        }
+        collapse(kept);
+
+        Throwable c = t.getCause();
+        if (c != null && c != t && depth < MAX_CAUSES) {
+            cause = new JairusUnitStackTrace(c, trace, depth + 1);
+        }
+    }
+
+    /**
+     * Return true if frame is removed from filtered traces.
+     * @param frame stack frame
+     * @return true if class matches {@link #FILTER_PREFIXES} or is a Rhino
+     * class compiled from jairusunit.js
+     */
+    public static boolean isFiltered(StackTraceElement frame) {
+        String c = frame.getClassName();
+        for (String prefix : FILTER_PREFIXES) {
+            if (c.startsWith(prefix)) {
+                return true;
+            }
+        }
+        String file = frame.getFileName();
+        return file != null && file.endsWith("jairusunit.js") && c.startsWith("org.mozilla.javascript.");
+    }
+
+    // split frames into runs, merging consecutive repeats of the same run,
+    // then drop runs beyond max frames
+    private void collapse(List<StackTraceElement> frames) {
+        int i = 0;
+        while (i < frames.size()) {
+            int bestLen = 1;
+            int bestTimes = 1;
+            for (int len = 1; len <= MAX_RUN && i + 2 * len <= frames.size(); len++) {
+                int times = 1;
+                while (i + (times + 1) * len <= frames.size() && sameRun(frames, i, i + times * len, len)) {
+                    times++;
+                }
+                // only collapse recursion, prefer collapse which hides most frames
+                if (times >= MIN_REPEATS && (times - 1) * len > (bestTimes - 1) * bestLen) {
+                    bestLen = len;
+                    bestTimes = times;
+                }
+            }
+            runs.add(frames.subList(i, i + bestLen).toArray(new StackTraceElement[bestLen]));
+            repeats.add(bestTimes);
+            i += bestLen * bestTimes;
+        }
+
+        if (maxFrames <= 0) {
+            return;
+        }
+        int shown = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            StackTraceElement[] run = runs.get(r);
+            if (shown + run.length > maxFrames) {
+                int keep = maxFrames - shown;
+                if (keep > 0) {
+                    dropped += run.length * repeats.get(r) - keep;
+                    StackTraceElement[] partial = new StackTraceElement[keep];
+                    System.arraycopy(run, 0, partial, 0, keep);
+                    runs.set(r, partial);
+                    repeats.set(r, 1);
+                    r++;
+                }
+                while (runs.size() > r) {
+                    dropped += runs.get(r).length * repeats.get(r);
+                    runs.remove(r);
+                    repeats.remove(r);
+                }
+                return;
+            }
+            shown += run.length;
+        }
+    }
+
+    private static boolean sameRun(List<StackTraceElement> frames, int a, int b, int len) {
+        for (int i = 0; i < len; i++) {
+            if (!frames.get(a + i).equals(frames.get(b + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return class name of throwable */
+    public String getClassName() { return className; }
+    /** @return message of throwable */
+    public String getMessage() { return message; }
+
+    /** @return filtered stack trace in same format as {@link Throwable#printStackTrace()} */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb, "");
+        return sb.toString();
+    }
+
+    private void appendTo(StringBuilder sb, String prefix) {
+        sb.append(prefix).append(header).append('\n');
+        for (int i = 0; i < runs.size(); i++) {
+            StackTraceElement[] run = runs.get(i);
+            for (StackTraceElement frame : run) {
+                sb.append("\tat ").append(frame).append('\n');
+            }
+            int times = repeats.get(i);
+            if (times > 1) {
+                sb.append("\t... ").append(run.length == 1 ? "frame" : run.length + " frames")
+                    .append(" repeated ").append(times - 1).append(" more times\n");
+            }
+        }
+        if (dropped > 0) {
+            sb.append("\t... ").append(dropped).append(" more frames not shown\n");
+        }
+        if (common > 0) {
+            sb.append("\t... ").append(common).append(" more\n");
+        }
+        if (cause != null) {
+            cause.appendTo(sb, "Caused by: ");
+        }
+    }
+}
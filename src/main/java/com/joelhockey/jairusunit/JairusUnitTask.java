@@ -24,12 +24,39 @@
 
 package com.joelhockey.jairusunit;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.Java;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.types.CommandlineJava;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Path;
 
 /**
  * Ant 'jairusunit' task for JairusUnit extends from {@link Java}.
@@ -39,6 +66,8 @@ import org.apache.tools.ant.types.FileSet;
  * @author Joel Hockey
  */
 public class JairusUnitTask extends Java {
+    private static final Pattern TESTSUITE_TIME = Pattern.compile("<testsuite [^>]*time=\"([0-9.,]+)\"");
+
     public static class BatchTest {
         public String todir = "target/surefire-reports";
         public List<FileSet> fileSets = new ArrayList<FileSet>();
@@ -50,7 +79,73 @@ public class JairusUnitTask extends Java {
         }
     }
 
+    public static class Preload {
+        public String file;
+        public void setFile(File file) {
+            this.file = file.getAbsolutePath().replace('\\', '/');
+        }
+    }
+
+    public static class SearchPath {
+        public String entry;
+        public void setDir(File dir) {
+            this.entry = dir.getAbsolutePath().replace('\\', '/');
+        }
+        public void setClasspath(String prefix) {
+            this.entry = JairusUnitScope.CLASSPATH + prefix;
+        }
+    }
+
+    public static class OptPath {
+        public String path;
+        public String level;
+        public void setPath(String path) {
+            this.path = path;
+        }
+        public void setLevel(String level) {
+            this.level = level;
+        }
+    }
+
     private List<BatchTest> batchTests = new ArrayList<BatchTest>();
+    private List<Preload> preloads = new ArrayList<Preload>();
+    private List<SearchPath> searchPath = new ArrayList<SearchPath>();
+    private List<OptPath> optPaths = new ArrayList<OptPath>();
+    private int threads = 1;
+    private int suiteThreads = 1;
+    private boolean sharedScope = false;
+    private String cacheDir;
+    private String readCache;
+    private int maxFrames;
+    private String timings;
+    private int slowest = -1;
+    private double slowRatio;
+    private boolean failOnSlow = false;
+    private boolean streaming = false;
+    private String properties;
+    private String metrics;
+    private boolean incremental = false;
+    private boolean jndiNamespaces = false;
+    private boolean coverage = false;
+    private String coverageInclude;
+    private boolean profile = false;
+    private long profileInterval;
+    private String optLevel;
+    private String optStats;
+    private boolean daemon = false;
+    private int daemonPort = JairusUnitDaemon.DEFAULT_PORT;
+    private int daemonTimeout = JairusUnitDaemon.DEFAULT_IDLE_TIMEOUT;
+    private int forks = 1;
+    private long testTimeout;
+    private long fileTimeout;
+    private boolean bench = false;
+    private int benchWarmup = -1;
+    private int benchIterations = -1;
+    private long benchTime = -1;
+    private String benchBaseline;
+    private double benchThreshold = -1;
+    private boolean failOnError = true;
+    private File dir;
     public JairusUnitTask() {
         setClassname(JairusUnit.class.getName());
         setFork(true);
@@ -58,11 +153,94 @@ public class JairusUnitTask extends Java {
     }
 
     public void addBatchTest(BatchTest batchTest) { batchTests.add(batchTest); }
+    /** Library to load once into shared scope, implies sharedscope. */
+    public void addPreload(Preload preload) { preloads.add(preload); }
+    /** Directory or classpath prefix to search in order for load and readFile. */
+    public void addSearchPath(SearchPath entry) { searchPath.add(entry); }
+    /** Rhino optimization level for scripts whose url matches regex 'path', overrides optlevel. */
+    public void addOptPath(OptPath optPath) { optPaths.add(optPath); }
     public void setDebugjs(boolean debugjs) {
         if (debugjs) {
             createJvmarg().setValue("-Ddebugjs");
         }
     }
+    /** Number of worker threads to run files in parallel, default 1. */
+    public void setThreads(int threads) { this.threads = threads; }
+    /** Number of worker threads to run 'Test' suites within each file in parallel, default 1. */
+    public void setSuitethreads(int suiteThreads) { this.suiteThreads = suiteThreads; }
+    /** Evaluate standard objects and jairusunit.js once into sealed shared scope, default false. */
+    public void setSharedscope(boolean sharedScope) { this.sharedScope = sharedScope; }
+    /** Directory to store compiled script classes between runs, e.g. target/jairusunit-cache. */
+    public void setCachedir(File cacheDir) { this.cacheDir = cacheDir.getAbsolutePath().replace('\\', '/'); }
+    /** Bytes of readFile contents to cache across files and threads, e.g. 256m, default none. */
+    public void setReadcache(String readCache) { this.readCache = readCache; }
+    /** Max stack frames shown for each failure in reports, default no limit. */
+    public void setMaxframes(int maxFrames) { this.maxFrames = maxFrames; }
+    /** File to keep durations of each test and file between runs, e.g. target/jairusunit-timings.txt. */
+    public void setTimings(File timings) { this.timings = timings.getAbsolutePath().replace('\\', '/'); }
+    /** Number of slowest tests and files if timings set, top profiled functions and slowest scripts to compile, to print, default 10. */
+    public void setSlowest(int slowest) { this.slowest = slowest; }
+    /** Print tests which took more than ratio times as long as in the previous run, e.g. 2. */
+    public void setSlowratio(double slowRatio) { this.slowRatio = slowRatio; }
+    /** Fail if any test took more than slowratio times as long as in the previous run, default false. */
+    public void setFailonslow(boolean failOnSlow) { this.failOnSlow = failOnSlow; }
+    /** Write each test to reports as soon as it finishes, default false. */
+    public void setStreaming(boolean streaming) { this.streaming = streaming; }
+    /** How system properties are written to xml reports: suite (default), once or file. */
+    public void setProperties(String properties) { this.properties = properties; }
+    /** Only run test files whose loaded or read files changed since the previous run, default false. */
+    public void setIncremental(boolean incremental) { this.incremental = incremental; }
+    /** Write lcov and Cobertura line coverage of loaded scripts to each todir, default false. */
+    public void setCoverage(boolean coverage) { this.coverage = coverage; }
+    /** Regex of script urls to cover, implies coverage, default all scripts. */
+    public void setCoverageinclude(String coverageInclude) { this.coverageInclude = coverageInclude; }
+    /** Sample javascript stacks and write 'PROFILE-*.txt' collapsed stacks to todir, default false. */
+    public void setProfile(boolean profile) { this.profile = profile; }
+    /** Millis between profile samples, default 5. */
+    public void setProfileinterval(long profileInterval) { this.profileInterval = profileInterval; }
+    /** Rhino optimization level -1 to 9 for loaded scripts, or 'adaptive', default Rhino default. */
+    public void setOptlevel(String optLevel) { this.optLevel = optLevel; }
+    /** File to keep script load counts between runs for adaptive optlevel, e.g. target/jairusunit-optimization.txt. */
+    public void setOptstats(File optStats) { this.optStats = optStats.getAbsolutePath().replace('\\', '/'); }
+    /** Give each test file its own jndi namespace, default false. */
+    public void setJndinamespaces(boolean jndiNamespaces) { this.jndiNamespaces = jndiNamespaces; }
+    /** File to write phase timings and counters, Prometheus text if '.prom' or '.txt', else JSON. */
+    public void setMetrics(File metrics) { this.metrics = metrics.getAbsolutePath().replace('\\', '/'); }
+
+    /** Number of jvms to split files across, balanced by durations from previous reports, default 1. */
+    public void setForks(int forks) { this.forks = forks; }
+    /** Millis after which a test is aborted and recorded as an error. */
+    public void setTesttimeout(long testTimeout) { this.testTimeout = testTimeout; }
+    /** Millis after which remaining tests in a file are aborted and recorded as errors. */
+    public void setFiletimeout(long fileTimeout) { this.fileTimeout = fileTimeout; }
+    /** Run 'bench*' functions as benchmarks rather than running tests, default false. */
+    public void setBench(boolean bench) { this.bench = bench; }
+    /** Number of benchmark warmup iterations, default 5. */
+    public void setBenchwarmup(int benchWarmup) { this.benchWarmup = benchWarmup; }
+    /** Number of benchmark measurement iterations, default 10. */
+    public void setBenchiterations(int benchIterations) { this.benchIterations = benchIterations; }
+    /** Millis for each benchmark iteration, default 100. */
+    public void setBenchtime(long benchTime) { this.benchTime = benchTime; }
+    /** Directory with 'BENCH-*.json' from previous run to compare benchmarks against. */
+    public void setBenchbaseline(File benchBaseline) { this.benchBaseline = benchBaseline.getAbsolutePath().replace('\\', '/'); }
+    /** Percent slower than baseline before a benchmark fails, default 10. */
+    public void setBenchthreshold(double benchThreshold) { this.benchThreshold = benchThreshold; }
+    /** Run tests in long-lived daemon started on first use rather than forking, default false. */
+    public void setDaemon(boolean daemon) { this.daemon = daemon; }
+    /** Loopback port for daemon. */
+    public void setDaemonport(int daemonPort) { this.daemonPort = daemonPort; }
+    /** Seconds daemon waits for a request before exiting. */
+    public void setDaemontimeout(int daemonTimeout) { this.daemonTimeout = daemonTimeout; }
+    @Override
+    public void setFailonerror(boolean failOnError) {
+        this.failOnError = failOnError;
+        super.setFailonerror(failOnError);
+    }
+    @Override
+    public void setDir(File dir) {
+        this.dir = dir;
+        super.setDir(dir);
+    }
 
     @Override
     public void execute() throws BuildException {
@@ -76,30 +254,440 @@ public class JairusUnitTask extends Java {
             test = test.replace('\\', '.').replace('/', '.');
         }
 
-        String todir = "";
-        String basedir = "";
+        // collect {basedir, file, todir} for each test file
+        List<String[]> files = new ArrayList<String[]>();
         for (BatchTest batchTest : batchTests) {
-            todir = setArgIfDifferent("-todir", todir, batchTest.todir);
+            String todir = batchTest.todir;
+            // daemon may have a different working dir
+            if (daemon) {
+                todir = getProject().resolveFile(todir).getAbsolutePath().replace('\\', '/');
+            }
             for (FileSet fs : batchTest.fileSets) {
+                String basedir = fs.getDir(getProject()).getAbsolutePath().replace('\\', '/');
                 for (String file : fs.getDirectoryScanner(getProject()).getIncludedFiles()) {
                     // normalise file for compare - all slashes to dots
                     file = file.replace('\\', '/');
-                    basedir = setArgIfDifferent("-basedir", basedir,
-                            fs.getDir(getProject()).getAbsolutePath().replace('\\', '/'));
                     if (test == null || file.replace('/', '.').endsWith(test)) {
-                        createArg().setValue(file);
+                        files.add(new String[] {basedir, file, todir});
                     }
                 }
             }
         }
-        super.execute();
+
+        if (daemon) {
+            List<String> args = options(metrics);
+            addFileArgs(args, files);
+            executeDaemon(args.toArray(new String[args.size()]));
+        } else if (forks > 1 && files.size() > 1) {
+            executeForks(files);
+        } else {
+            List<String> args = options(metrics);
+            addFileArgs(args, files);
+            for (String arg : args) {
+                createArg().setValue(arg);
+            }
+            super.execute();
+        }
+    }
+
+    // args for options other than files
+    private List<String> options(String metricsFile) {
+        List<String> args = new ArrayList<String>();
+        if (threads > 1) {
+            args.add("-threads");
+            args.add(String.valueOf(threads));
+        }
+        if (suiteThreads > 1) {
+            args.add("-suitethreads");
+            args.add(String.valueOf(suiteThreads));
+        }
+        if (testTimeout > 0) {
+            args.add("-testtimeout");
+            args.add(String.valueOf(testTimeout));
+        }
+        if (fileTimeout > 0) {
+            args.add("-filetimeout");
+            args.add(String.valueOf(fileTimeout));
+        }
+        if (bench) {
+            args.add("-bench");
+            if (benchWarmup >= 0) {
+                args.add("-benchwarmup");
+                args.add(String.valueOf(benchWarmup));
+            }
+            if (benchIterations >= 0) {
+                args.add("-benchiterations");
+                args.add(String.valueOf(benchIterations));
+            }
+            if (benchTime >= 0) {
+                args.add("-benchtime");
+                args.add(String.valueOf(benchTime));
+            }
+            if (benchBaseline != null) {
+                args.add("-benchbaseline");
+                args.add(benchBaseline);
+            }
+            if (benchThreshold >= 0) {
+                args.add("-benchthreshold");
+                args.add(String.valueOf(benchThreshold));
+            }
+        }
+        if (sharedScope) {
+            args.add("-sharedscope");
+        }
+        if (streaming) {
+            args.add("-streaming");
+        }
+        if (properties != null) {
+            args.add("-properties");
+            args.add(properties);
+        }
+        if (incremental) {
+            args.add("-incremental");
+        }
+        if (coverageInclude != null) {
+            args.add("-coverageinclude");
+            args.add(coverageInclude);
+        } else if (coverage) {
+            args.add("-coverage");
+        }
+        if (profile) {
+            args.add("-profile");
+            if (profileInterval > 0) {
+                args.add("-profileinterval");
+                args.add(String.valueOf(profileInterval));
+            }
+        }
+        if (optLevel != null) {
+            args.add("-optlevel");
+            args.add(optLevel);
+        }
+        for (OptPath optPath : optPaths) {
+            args.add("-optpath");
+            args.add(optPath.path + "=" + optPath.level);
+        }
+        if (optStats != null) {
+            args.add("-optstats");
+            args.add(optStats);
+        }
+        if (jndiNamespaces) {
+            args.add("-jndinamespaces");
+        }
+        if (metricsFile != null) {
+            args.add("-metrics");
+            args.add(metricsFile);
+        }
+        if (cacheDir != null) {
+            args.add("-cachedir");
+            args.add(cacheDir);
+        }
+        if (maxFrames > 0) {
+            args.add("-maxframes");
+            args.add(String.valueOf(maxFrames));
+        }
+        if (slowest >= 0) {
+            args.add("-slowest");
+            args.add(String.valueOf(slowest));
+        }
+        if (timings != null) {
+            args.add("-timings");
+            args.add(timings);
+            if (slowRatio > 0) {
+                args.add("-slowratio");
+                args.add(String.valueOf(slowRatio));
+            }
+            if (failOnSlow) {
+                args.add("-failonslow");
+            }
+        }
+        for (SearchPath entry : searchPath) {
+            args.add("-searchpath");
+            args.add(entry.entry);
+        }
+        if (readCache != null) {
+            args.add("-readcache");
+            args.add(readCache);
+        }
+        for (Preload preload : preloads) {
+            args.add("-preload");
+            args.add(preload.file);
+        }
+        return args;
+    }
+
+    // add files with '-todir' and '-basedir' only when they change
+    private void addFileArgs(List<String> args, List<String[]> files) {
+        String basedir = "";
+        String todir = "";
+        for (String[] file : files) {
+            if (!file[2].equals(todir)) {
+                todir = file[2];
+                args.add("-todir");
+                args.add(todir);
+            }
+            if (!file[0].equals(basedir)) {
+                basedir = file[0];
+                args.add("-basedir");
+                args.add(basedir);
+            }
+            args.add(file[1]);
+        }
+    }
+
+    // run files in separate forked jvms balanced by previous durations
+    private void executeForks(List<String[]> files) throws BuildException {
+        List<List<String[]>> shards = shard(files, forks);
+        // each fork adds its coverage to reports in todir
+        if (coverage || coverageInclude != null) {
+            for (String[] file : files) {
+                getProject().resolveFile(file[2] + "/" + JairusUnitCoverage.LCOV_FILENAME).delete();
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (int i = 0; i < shards.size(); i++) {
+                // each fork writes its own metrics file
+                String metricsFile = metrics == null ? null : metrics.replaceFirst("(\\.[^./]*)?$", "-fork" + i + "$1");
+                List<String> args = options(metricsFile);
+                if (coverage || coverageInclude != null) {
+                    args.add("-coveragemerge");
+                }
+                addFileArgs(args, shards.get(i));
+                final String[] cmd = forkCommandline(args);
+                results.add(pool.submit(new Callable<Object[]>() {
+                    public Object[] call() throws Exception {
+                        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                        Execute execute = new Execute(new PumpStreamHandler(buf));
+                        execute.setAntRun(getProject());
+                        if (dir != null) {
+                            execute.setWorkingDirectory(dir);
+                        }
+                        execute.setCommandline(cmd);
+                        int exit = execute.execute();
+                        return new Object[] {exit, buf.toString()};
+                    }
+                }));
+            }
+
+            // log output of each fork in order so that output is not interleaved
+            int exit = 0;
+            for (int i = 0; i < results.size(); i++) {
+                Object[] result = results.get(i).get();
+                log("Fork " + (i + 1) + " of " + results.size() + ", " + shards.get(i).size() + " files",
+                        Project.MSG_VERBOSE);
+                for (String line : ((String) result[1]).split("\r?\n")) {
+                    if (line.length() > 0) {
+                        log(line, Project.MSG_INFO);
+                    }
+                }
+                if ((Integer) result[0] != 0 && exit == 0) {
+                    exit = (Integer) result[0];
+                }
+            }
+            if (exit != 0) {
+                if (failOnError) {
+                    throw new BuildException("Java returned: " + exit, getLocation());
+                }
+                log("Java Result: " + exit, Project.MSG_ERR);
+            }
+        } catch (InterruptedException ie) {
+            throw new BuildException(ie, getLocation());
+        } catch (ExecutionException ee) {
+            throw new BuildException(ee.getCause(), getLocation());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // same jvm, classpath and jvmargs as forked run with given args
+    private String[] forkCommandline(List<String> args) {
+        CommandlineJava cmd;
+        try {
+            cmd = (CommandlineJava) getCommandLine().clone();
+        } catch (CloneNotSupportedException cnse) {
+            throw new BuildException(cnse);
+        }
+        cmd.clearJavaArgs();
+        for (String arg : args) {
+            cmd.createArgument().setValue(arg);
+        }
+        return cmd.getCommandline();
+    }
+
+    /**
+     * Split files into shards using longest-processing-time bin packing.
+     * Each file is weighted by the time of its xml report from the previous
+     * run, or by its size scaled to the average time per byte of files which
+     * have reports.  Files keep their original order within each shard.
+     * @param files list of {basedir, file, todir}
+     * @param n max number of shards
+     * @return shards, none empty
+     */
+    private List<List<String[]>> shard(List<String[]> files, int n) {
+        final double[] weights = new double[files.size()];
+        long[] sizes = new long[files.size()];
+        double knownTime = 0;
+        long knownSize = 0;
+        long totalSize = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String[] file = files.get(i);
+            sizes[i] = new File(file[0], file[1]).length();
+            totalSize += sizes[i];
+            weights[i] = previousTime(file);
+            if (weights[i] >= 0) {
+                knownTime += weights[i];
+                knownSize += sizes[i];
+            }
+        }
+        // seconds per byte if any times known, else just use size
+        double scale = knownSize > 0 ? knownTime / knownSize : 1.0 / Math.max(totalSize, 1);
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            if (weights[i] < 0) {
+                weights[i] = sizes[i] * scale;
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(weights[b], weights[a]);
+            }
+        });
+
+        // assign each file, longest first, to least loaded shard
+        n = Math.min(n, files.size());
+        double[] loads = new double[n];
+        List<SortedSet<Integer>> assigned = new ArrayList<SortedSet<Integer>>();
+        for (int i = 0; i < n; i++) {
+            assigned.add(new TreeSet<Integer>());
+        }
+        for (Integer i : order) {
+            int min = 0;
+            for (int j = 1; j < n; j++) {
+                if (loads[j] < loads[min]) {
+                    min = j;
+                }
+            }
+            loads[min] += weights[i];
+            assigned.get(min).add(i);
+        }
+        List<List<String[]>> shards = new ArrayList<List<String[]>>();
+        for (SortedSet<Integer> indexes : assigned) {
+            List<String[]> shard = new ArrayList<String[]>();
+            for (Integer i : indexes) {
+                shard.add(files.get(i));
+            }
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    // time attribute of testsuite in previous xml report or -1 if not found
+    private double previousTime(String[] file) {
+        String testName = "jairusunit." + file[1].replaceAll("\\.js$", "").replaceAll("/|\\\\", ".");
+        File xml = getProject().resolveFile(file[2] + "/TEST-" + testName + ".xml");
+        if (!xml.exists()) {
+            return -1;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(xml), "UTF-8"));
+            try {
+                for (String line; (line = in.readLine()) != null; ) {
+                    Matcher m = TESTSUITE_TIME.matcher(line);
+                    if (m.find()) {
+                        // older reports may use a locale decimal comma
+                        return Double.parseDouble(m.group(1).replace(',', '.'));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {} // ignore
+        return -1;
+    }
+
+    // send args to daemon, starting new daemon if not running or classpath changed
+    private void executeDaemon(String[] args) throws BuildException {
+        Path classpath = getCommandLine().getClasspath();
+        String fingerprint = JairusUnitDaemon.fingerprint(classpath != null ? classpath.list() : new String[0]);
+        try {
+            Integer exit = daemonRequest(fingerprint, args);
+            if (exit == null) {
+                startDaemon();
+                // wait up to 30s for daemon to start
+                for (int i = 0; exit == null && i < 300; i++) {
+                    Thread.sleep(100);
+                    exit = daemonRequest(fingerprint, args);
+                }
+                if (exit == null) {
+                    throw new BuildException("Could not connect to jairusunit daemon on port " + daemonPort);
+                }
+            }
+            if (exit != 0 && failOnError) {
+                throw new BuildException("Java returned: " + exit, getLocation());
+            }
+        } catch (IOException ioe) {
+            throw new BuildException(ioe, getLocation());
+        } catch (InterruptedException ie) {
+            throw new BuildException(ie, getLocation());
+        }
+    }
+
+    // returns exit code, or null if daemon not running or restarting
+    private Integer daemonRequest(String fingerprint, String[] args) throws IOException {
+        String token = JairusUnitDaemon.readToken(daemonPort);
+        if (token == null) {
+            return null;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), daemonPort);
+        } catch (ConnectException ce) {
+            return null;
+        }
+        try {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            out.write(JairusUnitDaemon.HEADER + token + " " + fingerprint + "\n");
+            for (String arg : args) {
+                out.write(arg + "\n");
+            }
+            out.write("\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            for (String line; (line = in.readLine()) != null; ) {
+                if (line.startsWith(JairusUnitDaemon.EXIT)) {
+                    return Integer.valueOf(line.substring(JairusUnitDaemon.EXIT.length()));
+                } else if (line.equals(JairusUnitDaemon.RESTART)) {
+                    log("Classpath changed, restarting jairusunit daemon", Project.MSG_INFO);
+                    return null;
+                }
+                log(line, Project.MSG_INFO);
+            }
+            throw new BuildException("jairusunit daemon closed connection");
+        } finally {
+            socket.close();
+        }
     }
 
-    private String setArgIfDifferent(String argName, String currentValue, String newValue) {
-        if (!newValue.equals(currentValue)) {
-            createArg().setValue(argName);
-            createArg().setValue(newValue);
+    // spawn daemon using same jvm, classpath and jvmargs as forked run
+    private void startDaemon() throws IOException {
+        CommandlineJava cmd;
+        try {
+            cmd = (CommandlineJava) getCommandLine().clone();
+        } catch (CloneNotSupportedException cnse) {
+            throw new BuildException(cnse);
         }
-        return newValue;
+        cmd.clearJavaArgs();
+        cmd.createArgument().setValue("-daemon");
+        cmd.createArgument().setValue(String.valueOf(daemonPort));
+        cmd.createArgument().setValue("-idletimeout");
+        cmd.createArgument().setValue(String.valueOf(daemonTimeout));
+        log("Starting jairusunit daemon on port " + daemonPort, Project.MSG_INFO);
+        Execute execute = new Execute();
+        execute.setAntRun(getProject());
+        execute.setWorkingDirectory(getProject().getBaseDir());
+        execute.setCommandline(cmd.getCommandline());
+        execute.spawn();
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.joelhockey.jairusunit;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestListener;
+
+/**
+ * Durations of every test and file in a run, used to report the slowest
+ * tests and files and the tests which got slower since the previous run.
+ * Durations are kept in a timings file which is read at the start of the
+ * run and merged with the durations of this run at the end while holding
+ * a lock, so separate jvms and incremental runs only replace the entries
+ * for the files they ran.
+ * <p>
+ * Each line of the file is 'test &lt;millis> &lt;file> &lt;test>' or
+ * 'file &lt;millis> &lt;file>'.
+ * @author Joel Hockey
+ */
+public class JairusUnitTimings {
+    /** Tests faster than this are never reported as slower than the previous run. */
+    public static final long MIN_REGRESSION_MILLIS = 100;
+
+    private File file;
+    private Map<String, Long> previous = new HashMap<String, Long>();
+    private ConcurrentMap<String, Long> tests = new ConcurrentHashMap<String, Long>();
+    private ConcurrentMap<String, Long> files = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Read timings of previous run from file if it exists.
+     * @param file timings file
+     * @throws IOException if error reading file
+     */
+    public JairusUnitTimings(File file) throws IOException {
+        this.file = file;
+        previous = read(file);
+    }
+
+    // keys are 'test <file> <test>' and 'file <file>'
+    private static Map<String, Long> read(File file) throws IOException {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        if (!file.exists()) {
+            return result;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length == 3 && ("test".equals(parts[0]) || "file".equals(parts[0]))) {
+                    try {
+                        result.put(parts[0] + " " + parts[2], Long.valueOf(parts[1]));
+                    } catch (NumberFormatException nfe) {} // ignore
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Create listener which records duration of each test in file.
+     * @param fileName name of test file used in reports
+     * @param path full path of test file, removed from test names so
+     * timings can be compared between machines
+     * @return listener to add to {@link junit.framework.TestResult}
+     */
+    public TestListener listener(final String fileName, final String path) {
+        return new TestListener() {
+            private Map<Test, Long> starts = new HashMap<Test, Long>();
+            public synchronized void startTest(Test test) {
+                starts.put(test, System.nanoTime());
+            }
+            public synchronized void endTest(Test test) {
+                Long start = starts.remove(test);
+                long nanos = start == null ? 0 : System.nanoTime() - start;
+                // use time from when test ran if results are replayed
+                if (test instanceof JairusUnitParallelSuite.TimedTest) {
+                    nanos = ((JairusUnitParallelSuite.TimedTest) test).getNanos();
+                }
+                tests.put(fileName + " " + test.toString().replace("(" + path + ".", "("), nanos / 1000000);
+            }
+            public void addError(Test test, Throwable t) {}
+            public void addFailure(Test test, AssertionFailedError t) {}
+        };
+    }
+
+    /**
+     * Record duration of file.
+     * @param fileName name of test file used in reports
+     * @param millis duration
+     */
+    public void recordFile(String fileName, long millis) {
+        files.put(fileName, millis);
+    }
+
+    /**
+     * Return tests which took more than ratio times as long as in the
+     * previous run, ignoring tests faster than {@link #MIN_REGRESSION_MILLIS}.
+     * @param ratio ratio, e.g. 2.0
+     * @return descriptions of slower tests, slowest first
+     */
+    public List<String> regressions(double ratio) {
+        List<Map.Entry<String, Long>> slower = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Long> entry : tests.entrySet()) {
+            Long before = previous.get("test " + entry.getKey());
+            if (before != null && entry.getValue() >= MIN_REGRESSION_MILLIS
+                    && entry.getValue() > ratio * Math.max(before, 1)) {
+                slower.add(entry);
+            }
+        }
+        sort(slower);
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : slower) {
+            long before = previous.get("test " + entry.getKey());
+            result.add(format("%8.3f s -> %8.3f s (%.1fx)  %s", before / 1000.0, entry.getValue() / 1000.0,
+                    entry.getValue() / (double) Math.max(before, 1), entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Print slowest tests and files, and tests slower than previous run.
+     * @param out stream to print to
+     * @param top number of slowest tests and files to print
+     * @param ratio ratio for {@link #regressions(double)}, 0 to not compare
+     * @return number of tests slower than previous run
+     */
+    public int report(PrintStream out, int top, double ratio) {
+        if (top > 0 && !tests.isEmpty()) {
+            out.println("Slowest tests:");
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(tests.entrySet());
+            sort(entries);
+            for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(top, entries.size()))) {
+                out.println(format("%8.3f s  %s", entry.getValue() / 1000.0, entry.getKey()));
+            }
+            out.println("Slowest files:");
+            entries = new ArrayList<Map.Entry<String, Long>>(files.entrySet());
+            sort(entries);
+            for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(top, entries.size()))) {
+                out.println(format("%8.3f s  %s", entry.getValue() / 1000.0, entry.getKey()));
+            }
+        }
+        if (ratio <= 0) {
+            return 0;
+        }
+        List<String> regressions = regressions(ratio);
+        if (!regressions.isEmpty()) {
+            out.println(format("Slower than previous run by more than %.1fx:", ratio));
+            for (String regression : regressions) {
+                out.println(regression);
+            }
+        }
+        return regressions.size();
+    }
+
+    /**
+     * Write timings file.  Durations from this run are merged with the
+     * current file while holding a lock.
+     * @throws IOException if error writing file
+     */
+    public void write() throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+            Map<String, Long> merged = read(file);
+            for (Map.Entry<String, Long> entry : tests.entrySet()) {
+                merged.put("test " + entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Long> entry : files.entrySet()) {
+                merged.put("file " + entry.getKey(), entry.getValue());
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Map.Entry<String, Long> entry : merged.entrySet()) {
+                    String[] parts = entry.getKey().split(" ", 2);
+                    out.print(parts[0] + " " + entry.getValue() + " " + parts[1] + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not write timings: " + file);
+            }
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    // slowest first
+    private static void sort(List<Map.Entry<String, Long>> entries) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * The MIT Licence
+ *
+ * Copyright 2010 Joel Hockey (joel.hockey@gmail.com).  All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.joelhockey.jairusunit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.WrappedException;
+
+/**
+ * JUnit {@link TestCase} that calls a javascript test method directly.
+ * Holds the javascript instance and calls its optional 'setUp' method,
+ * the test method and optional 'tearDown' method.  This avoids Rhino
+ * generating a JavaAdapter class for every test.
+ * @author Joel Hockey
+ */
+public class JsFunctionTestCase extends TestCase {
+    private Scriptable instance;
+    private String className;
+
+    /**
+     * Create test case.
+     * @param instance javascript object containing test method
+     * @param className name used in reports in place of java class name
+     * @param methodName name of test method
+     */
+    public JsFunctionTestCase(Scriptable instance, String className, String methodName) {
+        super(methodName);
+        this.instance = instance;
+        this.className = className;
+    }
+
+    /**
+     * Run setUp, test and tearDown within a Rhino {@link Context}.  If
+     * the scope is a {@link JairusUnitScope} with timeouts, setUp and test
+     * are aborted with a {@link JairusUnitContextFactory.TimeoutError} once
+     * the test timeout or file deadline passes, and tearDown gets its own
+     * test timeout.  The test timeout can be overridden with a
+     * 'jairusunitTimeout' property in millis on the test object, such as
+     * on the prototype of a 'Test' constructor, or as a global in the file.
+     */
+    @Override
+    public void runBare() throws Throwable {
+        Context.enter();
+        try {
+            Throwable exception = null;
+            startDeadline();
+            long start = JairusUnitMetrics.start();
+            call("setUp", false);
+            JairusUnitMetrics.record(JairusUnitMetrics.SETUP, start);
+            try {
+                start = JairusUnitMetrics.start();
+                runTest();
+            } catch (Throwable t) {
+                exception = t;
+            } finally {
+                JairusUnitMetrics.record(JairusUnitMetrics.TEST, start);
+                start = JairusUnitMetrics.start();
+                try {
+                    startDeadline();
+                    call("tearDown", false);
+                } catch (Throwable t) {
+                    if (exception == null) {
+                        exception = t;
+                    }
+                }
+                JairusUnitMetrics.record(JairusUnitMetrics.TEARDOWN, start);
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        } finally {
+            JairusUnitContextFactory.clearDeadline();
+            Context.exit();
+        }
+    }
+
+    // set deadline for current thread from test timeout and file deadline
+    private void startDeadline() {
+        Scriptable scope = ScriptableObject.getTopLevelScope(instance);
+        if (!(scope instanceof JairusUnitScope)) {
+            return;
+        }
+        JairusUnitScope jscope = (JairusUnitScope) scope;
+        long timeout = jscope.getTestTimeout();
+        Object override = ScriptableObject.getProperty(instance, "jairusunitTimeout");
+        if (!(override instanceof Number)) {
+            override = ScriptableObject.getProperty(scope, "jairusunitTimeout");
+        }
+        if (override instanceof Number) {
+            timeout = ((Number) override).longValue();
+        }
+
+        long now = System.nanoTime();
+        long fileDeadline = jscope.getFileDeadline();
+        if (fileDeadline != 0 && now - fileDeadline >= 0) {
+            throw new JairusUnitContextFactory.TimeoutError(
+                    "File timed out after " + jscope.getFileTimeout() + "ms");
+        }
+        if (timeout > 0 && (fileDeadline == 0 || fileDeadline - (now + timeout * 1000000) > 0)) {
+            JairusUnitContextFactory.setDeadline(now + timeout * 1000000,
+                    "Test timed out after " + timeout + "ms");
+        } else {
+            JairusUnitContextFactory.setDeadline(fileDeadline,
+                    "File timed out after " + jscope.getFileTimeout() + "ms");
+        }
+    }
+
+    @Override
+    protected void runTest() throws Throwable {
+        call(getName(), true);
+    }
+
+    /**
+     * Call method of instance.  Java exceptions thrown from javascript
+     * are unwrapped so that JUnit sees {@link AssertionFailedError} as a failure.
+     * @param methodName name of method to call
+     * @param required if true, fail if method doesn't exist
+     * @throws Throwable if method throws
+     */
+    protected void call(String methodName, boolean required) throws Throwable {
+        Function method = getMethod(methodName, required);
+        if (method != null) {
+            invoke(method);
+        }
+    }
+
+    /**
+     * Return method of instance.
+     * @param methodName name of method
+     * @param required if true, fail if method doesn't exist
+     * @return method or null if not required and doesn't exist
+     */
+    protected Function getMethod(String methodName, boolean required) {
+        Object method = ScriptableObject.getProperty(instance, methodName);
+        if (!(method instanceof Function)) {
+            if (required) {
+                fail("Method \"" + methodName + "\" not found");
+            }
+            return null;
+        }
+        return (Function) method;
+    }
+
+    /**
+     * Call function with instance as 'this' within current {@link Context}.
+     * Java exceptions thrown from javascript are unwrapped.
+     * @param method function to call
+     * @throws Throwable if method throws
+     */
+    protected void invoke(Function method) throws Throwable {
+        Context cx = Context.getCurrentContext();
+        try {
+            method.call(cx, ScriptableObject.getTopLevelScope(instance), instance, Context.emptyArgs);
+        } catch (JavaScriptException jse) {
+            if (jse.getValue() instanceof NativeJavaObject) {
+                Object o = ((NativeJavaObject) jse.getValue()).unwrap();
+                if (o instanceof Throwable) {
+                    throw (Throwable) o;
+                }
+            }
+            throw jse;
+        } catch (WrappedException we) {
+            if (we.getWrappedException() instanceof AssertionFailedError) {
+                throw we.getWrappedException();
+            }
+            throw we;
+        }
+    }
+
+    /** @return name used in reports in place of java class name */
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(" + className + ")";
+    }
+}
@@ -22,65 +22,8 @@
  * THE SOFTWARE.
  */
 
-function fail() {
-    throw new Packages.junit.framework.AssertionFailedError(arguments.length > 0 ? arguments[0] : null);
-}
-
-function assertEquals() {
-    if (arguments.length <= 2 && arguments[0] != arguments[1]) {
-        throw new Packages.junit.framework.AssertionFailedError("expected:<" + arguments[0] + "> but was:<" + arguments[1] +">");
-    } else if (arguments.length > 2 && arguments[1] != arguments[2]) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0] + " expected:<" + arguments[1] + "> but was:<" + arguments[2] +">");
-    }
-}
-
-function assertTrue() {
-    if (arguments.length == 1 && !arguments[0]) {
-        throw new Packages.junit.framework.AssertionFailedError();
-    } else if (arguments.length > 1 && !arguments[1]){
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0]);
-    }
-}
-
-function assertNotNull() {
-    if (arguments.length == 1 && arguments[0] === null) {
-        throw new Packages.junit.framework.AssertionFailedError();
-    } else if (arguments.length > 1 && arguments[1] === null) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0]);
-    }
-}
-
-function assertNull() {
-    if (arguments.length == 1 && arguments[0] !== null) {
-        throw new Packages.junit.framework.AssertionFailedError();
-    } else if (arguments.length > 1 && arguments[1] !== null) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0]);
-    }
-}
-
-function assertSame() {
-    if (arguments.length <= 2 && arguments[0] !== arguments[1]) {
-        throw new Packages.junit.framework.AssertionFailedError("expected same:<" + arguments[0] + "> but was:<" + arguments[1] +">");
-    } else if (arguments.length > 2 && arguments[1] !== arguments[2]) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0] + " expected same:<" + arguments[1] + "> but was:<" + arguments[2] +">");
-    }
-}
-
-function assertNotSame() {
-    if (arguments.length <= 2 && arguments[0] !== arguments[1]) {
-        throw new Packages.junit.framework.AssertionFailedError("expected not same");
-    } else if (arguments.length > 2 && arguments[1] !== arguments[2]) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0] + " expected not same");
-    }
-}
-
-function assertMatches() {
-    if (arguments.length <= 2 && !arguments[0].test(arguments[1])) {
-        throw new Packages.junit.framework.AssertionFailedError("expected match:<" + arguments[0] + "> but was:<" + arguments[1] +">");
-    } else if (arguments.length > 2 && !arguments[1].test(arguments[2])) {
-        throw new Packages.junit.framework.AssertionFailedError(arguments[0] + " expected match:<" + arguments[1] + "> but was:<" + arguments[2] +">");
-    }
-}
+// fail and assert* functions are defined in each scope by
+// com.joelhockey.jairusunit.JairusUnitAssert
 
 // Return TestSuite containing the following:
 // 1. TestCase for any global functions starting with 'test'
@@ -89,10 +32,16 @@ function assertMatches() {
 // 2b) If TestSuite is constructor function, create new instance and add all 'test*' methods
 // 2c) If TestSuite is object, extend object and add all 'test*' functions
 // 2d) If TestSuite contains no TestCases, add warning 'No tests found in <TestSuite>'
-function jairusunitTestSuite(file) {
+// 'this' is the scope for the file which may be a child of a shared scope
+// If bench is true, 'bench' and 'Bench' are used in place of 'test' and 'Test'
+// and each method is a JairusUnitBenchmark
+function jairusunitTestSuite(file, bench) {
+    var glbl = this;
+    var methodRegex = bench ? /^bench/ : /^test/;
+    var suiteRegex = bench ? /^Bench|Bench$/ : /^Test|Test$/;
     var result = new Packages.junit.framework.TestSuite(file);
     try {
-        load(file);
+        glbl.load(file);
     } catch (e) {
         var msg = com.joelhockey.jairusunit.JairusUnit.dumpError(
                 "Error loading javascript file: " + file,
@@ -101,22 +50,21 @@ function jairusunitTestSuite(file) {
     }
     
     function createTestCase(instance, className, methodName) {
-        instance.toString = function() { return methodName + "(" + className + ")"; };
-        var testCase = new Packages.junit.framework.TestCase(instance);
-        testCase.setName(methodName);
-        return testCase;
+        if (bench) {
+            return new Packages.com.joelhockey.jairusunit.JairusUnitBenchmark(instance, className, methodName);
+        }
+        return new Packages.com.joelhockey.jairusunit.JsFunctionTestCase(instance, className, methodName);
     }
     
-    var glbl = global();
     for (var prop in glbl) {
         // 1. TestCase for any global functions starting with 'test'
-        if (/^test/.test(prop) && typeof glbl[prop] === "function") {
+        if (methodRegex.test(prop) && typeof glbl[prop] === "function") {
             var testInstance = {};
             testInstance[prop] = glbl[prop];
             result.addTest(createTestCase(testInstance, file + ".global", prop))
 
         // 2. TestSuite for any objects or (constructor) functions starting or ending with 'Test'
-        } else if (/^Test|Test$/.test(prop)) {
+        } else if (suiteRegex.test(prop)) {
             var suiteName = file + "." + prop;
             var testSuite = new Packages.junit.framework.TestSuite(suiteName);
             var testObj = glbl[prop];
@@ -132,7 +80,7 @@ function jairusunitTestSuite(file) {
 
             for (var testMethod in allMethods) {
                 // only want 'test*' methods
-                if (typeof allMethods[testMethod] === "function" && /^test/.test(testMethod)) {
+                if (typeof allMethods[testMethod] === "function" && methodRegex.test(testMethod)) {
                     var testInstance = null;
                     // 2b) If TestSuite is constructor function, jairusunit will 'new' a new instance and add all 'test*' methods
                     if (typeof testObj === "function") {
@@ -0,0 +1,32 @@
+// JairusUnitBenchmark.readBaseline with names escaped as written by -bench
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitBenchmark);
+
+function testEscapedNames() {
+    var file = java.io.File.createTempFile("benchbaselinetest", ".json");
+    try {
+        write(file, '{\n  "benchmarks": [\n'
+            + '    {"name": "plain.js#bench", "opsPerSec": 1.000, "error": 0.000},\n'
+            + '    {"name": "quote \\"a\\".js#bench", "opsPerSec": 2.000, "error": 0.000},\n'
+            + '    {"name": "back\\\\slash\\\\.js#bench", "opsPerSec": 3.000, "error": 0.000},\n'
+            + '    {"name": "tab\\u0009.js#bench", "opsPerSec": 4.000, "error": 0.000}\n'
+            + '  ]\n}\n');
+        var baseline = JairusUnitBenchmark.readBaseline(file);
+        assertEquals(4, baseline.size());
+        assertEquals(1, Number(baseline.get("plain.js#bench")));
+        assertEquals(2, Number(baseline.get('quote "a".js#bench')));
+        assertEquals(3, Number(baseline.get("back\\slash\\.js#bench")));
+        assertEquals(4, Number(baseline.get("tab\t.js#bench")));
+    } finally {
+        file["delete"]();
+    }
+}
+
+function write(file, s) {
+    var out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+    try {
+        out.write(s);
+    } finally {
+        out.close();
+    }
+}
@@ -0,0 +1,108 @@
+// assertDeepEquals and assertNotSame
+
+// message of failure thrown by f
+function failureMessage(f) {
+    try {
+        f();
+    } catch (e) {
+        return String(e.getMessage());
+    }
+    fail("expected failure");
+}
+
+function testEqualStructures() {
+    assertDeepEquals({a: 1, b: [1, 2, {c: "x"}]}, {b: [1, 2, {c: "x"}], a: 1});
+    assertDeepEquals([], []);
+    assertDeepEquals({}, {});
+}
+
+function testPathOfFirstDifference() {
+    assertEquals("expected:<1> but was:<2> at items[3].id", failureMessage(function() {
+        assertDeepEquals({items: [{}, {}, {}, {id: 1}]}, {items: [{}, {}, {}, {id: 2}]});
+    }));
+    assertEquals("expected:<1> but was:<2> at [\"a b\"][0]", failureMessage(function() {
+        assertDeepEquals({"a b": [1]}, {"a b": [2]});
+    }));
+    assertEquals("msg expected:<x> but was:<y> at a", failureMessage(function() {
+        assertDeepEquals("msg", {a: "x"}, {a: "y"});
+    }));
+}
+
+function testArrayLength() {
+    assertEquals("expected length:<2> but was:<3> at a", failureMessage(function() {
+        assertDeepEquals({a: [1, 2]}, {a: [1, 2, 3]});
+    }));
+}
+
+function testMissingAndUnexpectedProperties() {
+    assertEquals("missing property at a.b", failureMessage(function() {
+        assertDeepEquals({a: {b: 1}}, {a: {}});
+    }));
+    assertEquals("unexpected property at a.c", failureMessage(function() {
+        assertDeepEquals({a: {b: 1}}, {a: {b: 1, c: 2}});
+    }));
+    // undefined property is not the same as missing
+    assertEquals("missing property at b", failureMessage(function() {
+        assertDeepEquals({a: 1, b: undefined}, {a: 1, c: 2});
+    }));
+}
+
+function testCycles() {
+    var a = {name: "a"};
+    a.self = a;
+    var b = {name: "a"};
+    b.self = b;
+    assertDeepEquals(a, b);
+
+    var c = [1];
+    c.push(c);
+    var d = [1];
+    d.push(d);
+    assertDeepEquals(c, d);
+
+    b.name = "b";
+    assertEquals("expected:<a> but was:<b> at name", failureMessage(function() {
+        assertDeepEquals(a, b);
+    }));
+}
+
+function testJavaArrays() {
+    var ints = java.lang.reflect.Array.newInstance(java.lang.Integer.TYPE, 3);
+    ints[0] = 1;
+    ints[1] = 2;
+    ints[2] = 3;
+    assertDeepEquals([1, 2, 3], ints);
+    assertDeepEquals(ints, [1, 2, 3]);
+    assertDeepEquals(new java.lang.String("abc").toCharArray(), new java.lang.String("abc").toCharArray());
+    assertEquals("expected:<4> but was:<3> at [2]", failureMessage(function() {
+        assertDeepEquals([1, 2, 4], ints);
+    }));
+    // array and object with same elements are not equal
+    assertEquals("expected:<1,2> but was:<[object Object]>", failureMessage(function() {
+        assertDeepEquals([1, 2], {0: 1, 1: 2});
+    }));
+}
+
+function testDates() {
+    assertDeepEquals({d: new Date(1000)}, {d: new Date(1000)});
+    assertTrue(failureMessage(function() {
+        assertDeepEquals({d: new Date(1000)}, {d: new Date(2000)});
+    }).indexOf(" at d") > 0);
+}
+
+function testJavaObjectsUseEquals() {
+    assertDeepEquals({s: new java.lang.StringBuilder("a").toString()}, {s: "a"});
+    assertDeepEquals([new java.io.File("a")], [new java.io.File("a")]);
+}
+
+function testAssertNotSame() {
+    var a = {};
+    assertNotSame(a, {});
+    assertNotSame(1, "1");
+    assertEquals("expected not same", failureMessage(function() {
+        assertNotSame(a, a);
+    }));
+    assertEquals("msg expected not same", failureMessage(function() {
+        assertNotSame("msg", 1, 1);
+    }));
+}
@@ -0,0 +1,15 @@
+// imports into this file's scope must not leak into other files
+// run with import2test.js, with and without sharedscope
+
+importPackage(java.util);
+importClass(java.io.File);
+
+function testImportPackage() {
+    var list = new ArrayList();
+    list.add("a");
+    assertEquals(1, list.size());
+}
+
+function testImportClass() {
+    assertEquals("b", new File("a/b").getName());
+}
@@ -0,0 +1,17 @@
+// runs after import1test.js, which imports java.util and java.io.File
+
+// checked when file is loaded, before any test imports
+var arrayListType = typeof ArrayList;
+var fileType = typeof File;
+
+function testImportsNotShared() {
+    assertEquals("undefined", arrayListType);
+    assertEquals("undefined", fileType);
+}
+
+function testImportSamePackage() {
+    importPackage(java.util);
+    importClass(java.io.File);
+    assertEquals(0, new ArrayList().size());
+    assertEquals("b", new File("a/b").getName());
+}
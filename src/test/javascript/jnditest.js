@@ -0,0 +1,73 @@
+// JairusUnitInitialContextFactory subcontexts and list, see jndi.properties
+
+function JndiTest() {}
+JndiTest.prototype = {
+    setUp: function() {
+        this.ctx = new javax.naming.InitialContext();
+        this.sub = this.ctx.createSubcontext("jnditest");
+    },
+    tearDown: function() {
+        this.ctx.destroySubcontext("jnditest");
+    },
+
+    testBindInSubcontext: function() {
+        this.ctx.bind("jnditest/a", "one");
+        assertEquals("one", this.ctx.lookup("jnditest/a"));
+        assertEquals("one", this.sub.lookup("a"));
+        this.sub.rebind("a", "two");
+        assertEquals("two", this.ctx.lookup("jnditest/a"));
+        this.ctx.unbind("jnditest/a");
+        assertNull(this.sub.lookup("a"));
+    },
+
+    testNestedSubcontext: function() {
+        this.ctx.createSubcontext("jnditest/nested");
+        this.ctx.bind("jnditest/nested/b", "deep");
+        assertEquals("deep", this.sub.lookup("nested/b"));
+        assertEquals("deep", this.ctx.lookup("jnditest/nested").lookup("b"));
+    },
+
+    testFlatNameWithoutSubcontext: function() {
+        this.ctx.bind("jnditestflat/x", "flat");
+        try {
+            assertEquals("flat", this.ctx.lookup("jnditestflat/x"));
+            assertNull(this.ctx.lookup("jnditestflat"));
+        } finally {
+            this.ctx.unbind("jnditestflat/x");
+        }
+    },
+
+    testCreateSubcontextTwice: function() {
+        try {
+            this.ctx.createSubcontext("jnditest");
+        } catch (e) {
+            assertTrue(e.javaException instanceof javax.naming.NameAlreadyBoundException);
+            return;
+        }
+        fail("expected NameAlreadyBoundException");
+    },
+
+    testList: function() {
+        this.sub.bind("s", "string");
+        this.sub.bind("n", new java.lang.Integer(1));
+        var names = {};
+        for (var e = this.ctx.list("jnditest"); e.hasMore(); ) {
+            var pair = e.next();
+            names[pair.getName()] = String(pair.getClassName());
+        }
+        assertDeepEquals({s: "java.lang.String", n: "java.lang.Integer"}, names);
+
+        var values = {};
+        for (var e = this.ctx.listBindings("jnditest"); e.hasMore(); ) {
+            var binding = e.next();
+            values[binding.getName()] = String(binding.getObject());
+        }
+        assertDeepEquals({s: "string", n: "1"}, values);
+    },
+
+    testDestroySubcontext: function() {
+        this.ctx.createSubcontext("jnditest/gone");
+        this.ctx.destroySubcontext("jnditest/gone");
+        assertNull(this.ctx.lookup("jnditest/gone"));
+    }
+};
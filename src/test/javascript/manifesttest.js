@@ -0,0 +1,49 @@
+// JairusUnitManifest across several runs in the same jvm such as a daemon
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitManifest);
+
+function testFileChangedBetweenRunsIsNotSkipped() {
+    var dir = java.io.File.createTempFile("manifesttest", "");
+    dir["delete"]();
+    dir.mkdir();
+    var manifestFile = new java.io.File(dir, JairusUnitManifest.FILENAME);
+    var dep = new java.io.File(dir, "dep.js");
+    var deps = new java.util.ArrayList();
+    deps.add(String(dep.toURI().toURL()));
+    try {
+        write(dep, "one");
+        // first run
+        var manifest = new JairusUnitManifest(manifestFile);
+        assertNull(manifest.previousResult("test.js"));
+        manifest.record("test.js", true, deps);
+        manifest.write();
+
+        // second run with no change skips test file
+        manifest = new JairusUnitManifest(manifestFile);
+        assertEquals("true", String(manifest.previousResult("test.js")));
+        manifest.record("test.js", true, deps);
+        manifest.write();
+
+        // third run after edit must run test file
+        write(dep, "two");
+        // make sure last-modified changes on file systems with coarse timestamps
+        dep.setLastModified(dep.lastModified() + 2000);
+        manifest = new JairusUnitManifest(manifestFile);
+        assertNull(manifest.previousResult("test.js"));
+    } finally {
+        var files = dir.listFiles();
+        for (var i = 0; i < files.length; i++) {
+            files[i]["delete"]();
+        }
+        dir["delete"]();
+    }
+}
+
+function write(file, s) {
+    var out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+    try {
+        out.write(s);
+    } finally {
+        out.close();
+    }
+}
@@ -0,0 +1,45 @@
+// run with '-coverage', coveredlib.js is loaded using the search path
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitCoverage);
+
+load("coveredlib.js");
+
+// hits of each line of script from lcov report
+function lcovHits(file, script) {
+    var hits = {};
+    var lines = readLines(file.getPath(), "UTF-8");
+    var found = false;
+    while (lines.hasNext()) {
+        var line = String(lines.next());
+        if (line.indexOf("SF:") == 0) {
+            found = line.substring(line.length - script.length) == script;
+        } else if (found && line.indexOf("DA:") == 0) {
+            var parts = line.substring(3).split(",");
+            hits[parts[0]] = Number(parts[1]);
+        }
+    }
+    return hits;
+}
+
+function testLineCoverage() {
+    assertTrue("run with -coverage", JairusUnitCoverage.isEnabled());
+    assertEquals("positive", sign(1));
+
+    var dir = java.io.File.createTempFile("coveragetest", "");
+    dir["delete"]();
+    dir.mkdir();
+    try {
+        JairusUnitCoverage.write(java.util.Collections.singletonList(dir.getPath()), false);
+        var hits = lcovHits(new java.io.File(dir, JairusUnitCoverage.LCOV_FILENAME), "coveredlib.js");
+        assertTrue(hits[3] > 0);
+        assertTrue(hits[4] > 0);
+        assertEquals(0, hits[6]);
+        assertTrue(new java.io.File(dir, JairusUnitCoverage.COBERTURA_FILENAME).length() > 0);
+    } finally {
+        var files = dir.listFiles();
+        for (var i = 0; i < files.length; i++) {
+            files[i]["delete"]();
+        }
+        dir["delete"]();
+    }
+}
@@ -0,0 +1,15 @@
+// run with '-jndinamespaces', jndinamespace2test.js binds the same name
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitInitialContextFactory);
+
+// bound while file is loaded
+var namespace = JairusUnitInitialContextFactory.getNamespace();
+new javax.naming.InitialContext().bind("jndinamespacetest", "one");
+
+function testNamespaceSetWhileLoading() {
+    assertNotNull(namespace);
+}
+
+function testFileBinding() {
+    assertEquals("one", new javax.naming.InitialContext().lookup("jndinamespacetest"));
+}
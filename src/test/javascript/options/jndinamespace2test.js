@@ -0,0 +1,15 @@
+// run with '-jndinamespaces', jndinamespace1test.js binds the same name
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitInitialContextFactory);
+
+// bound while file is loaded
+var namespace = JairusUnitInitialContextFactory.getNamespace();
+new javax.naming.InitialContext().bind("jndinamespacetest", "two");
+
+function testNamespaceSetWhileLoading() {
+    assertNotNull(namespace);
+}
+
+function testFileBinding() {
+    assertEquals("two", new javax.naming.InitialContext().lookup("jndinamespacetest"));
+}
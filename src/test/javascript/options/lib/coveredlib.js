@@ -0,0 +1,7 @@
+// loaded by coveragetest.js, which only runs the positive branch
+function sign(n) {
+    if (n > 0) {
+        return "positive";
+    }
+    return "negative";
+}
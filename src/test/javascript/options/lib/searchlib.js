@@ -0,0 +1,5 @@
+// loaded by searchpathtest.js, only found using the search path
+
+function searchlibName() {
+    return "searchlib";
+}
@@ -0,0 +1,60 @@
+// run with options/lib on the search path, see build.xml
+
+load("searchlib.js");
+
+function testLoadFromSearchPath() {
+    assertEquals("searchlib", searchlibName());
+}
+
+function testReadFileFromSearchPath() {
+    assertTrue(readFile("searchlib.js").indexOf("function searchlibName") >= 0);
+}
+
+function testClasspathPrefix() {
+    assertEquals(0, readFile("classpath:lines.txt").indexOf("first"));
+}
+
+// relative paths are only found on the search path
+function testRelativeFileNotInSearchPath() {
+    var file = java.io.File.createTempFile("searchpathtest", ".txt", new java.io.File("."));
+    try {
+        write(file, "relative");
+        assertNotFound(file.getName());
+    } finally {
+        file["delete"]();
+    }
+}
+
+// files not found are cached until the resolve cache is cleared
+function testMissingFileCached() {
+    var file = java.io.File.createTempFile("searchpathtest", ".txt");
+    file["delete"]();
+    try {
+        assertNotFound(file.getPath());
+        write(file, "created");
+        assertNotFound(file.getPath());
+        Packages.com.joelhockey.jairusunit.JairusUnitScope.clearResolveCache();
+        assertEquals("created", readFile(file.getPath()));
+    } finally {
+        file["delete"]();
+    }
+}
+
+function assertNotFound(path) {
+    try {
+        readFile(path);
+    } catch (e) {
+        assertTrue(String(e).indexOf("Could not find file") >= 0);
+        return;
+    }
+    fail("expected not found: " + path);
+}
+
+function write(file, s) {
+    var out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+    try {
+        out.write(s);
+    } finally {
+        out.close();
+    }
+}
@@ -0,0 +1,35 @@
+// scripts whose bytecode exceeds the JVM 64K method limit are interpreted
+
+// write script to temp file with one function of n statements
+function bigScript(n) {
+    var file = java.io.File.createTempFile("optleveltest", ".js");
+    file.deleteOnExit();
+    var out = new java.io.PrintWriter(new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8"));
+    try {
+        out.println("function big() {");
+        out.println("    var x = {count: 0};");
+        for (var i = 0; i < n; i++) {
+            out.println("    x.count += " + (i % 7) + ";");
+        }
+        out.println("    return x.count;");
+        out.println("}");
+    } finally {
+        out.close();
+    }
+    return file;
+}
+
+function testMethodTooLarge() {
+    var n = 8000;
+    var file = bigScript(n);
+    try {
+        load(file.getPath());
+        var expected = 0;
+        for (var i = 0; i < n; i++) {
+            expected += i % 7;
+        }
+        assertEquals(expected, big());
+    } finally {
+        file["delete"]();
+    }
+}
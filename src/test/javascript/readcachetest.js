@@ -0,0 +1,34 @@
+// readFile, with '-readcache' contents are shared by all reads of the same file
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitMetrics);
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitReadCache);
+
+function testCharsetAliasesShareEntry() {
+    var content = readFile("classpath:lines.txt", "UTF-8");
+    var hits = JairusUnitMetrics.get(JairusUnitMetrics.READ_CACHE_HITS);
+    assertEquals(content, readFile("classpath:lines.txt", "utf8"));
+    if (JairusUnitReadCache.isEnabled()) {
+        assertTrue(JairusUnitMetrics.get(JairusUnitMetrics.READ_CACHE_HITS) > hits);
+    }
+}
+
+function testChangedFileIsReadAgain() {
+    var file = java.io.File.createTempFile("readcachetest", ".txt");
+    file.deleteOnExit();
+    write(file, "one");
+    assertEquals("one", readFile(file.getPath(), "UTF-8"));
+    write(file, "two");
+    // make sure last-modified changes on file systems with coarse timestamps
+    file.setLastModified(file.lastModified() + 2000);
+    assertEquals("two", readFile(file.getPath(), "UTF-8"));
+    file["delete"]();
+}
+
+function write(file, s) {
+    var out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(file), "UTF-8");
+    try {
+        out.write(s);
+    } finally {
+        out.close();
+    }
+}
@@ -0,0 +1,47 @@
+// readLines and mapFile, lines.txt is found on the classpath
+
+function testReadLines() {
+    var lines = readLines("lines.txt", "UTF-8");
+    var result = [];
+    while (lines.hasNext()) {
+        result.push(String(lines.next()));
+    }
+    assertDeepEquals(["first", "second", "third"], result);
+    assertTrue(!lines.hasNext());
+}
+
+function testReadLinesClose() {
+    var lines = readLines("lines.txt");
+    assertEquals("first", lines.next());
+    lines.close();
+    assertTrue(!lines.hasNext());
+    // safe to close more than once
+    lines.close();
+}
+
+function testReadLinesUnknownCharset() {
+    try {
+        readLines("lines.txt", "no-such-charset");
+        fail("expected error");
+    } catch (e) {
+        assertTrue(String(e).indexOf("no-such-charset") >= 0);
+    }
+}
+
+function testMapFile() {
+    var buf = mapFile("lines.txt");
+    var content = readFile("lines.txt", "US-ASCII");
+    assertEquals(content.length, buf.remaining());
+    assertTrue(buf.isReadOnly());
+    assertEquals("f".charCodeAt(0), buf.get(0));
+    assertEquals("s".charCodeAt(0), buf.get(content.indexOf("second")));
+}
+
+function testMissingFile() {
+    try {
+        mapFile("no-such-file.txt");
+        fail("expected error");
+    } catch (e) {
+        assertTrue(String(e).indexOf("Could not find file: no-such-file.txt") >= 0);
+    }
+}
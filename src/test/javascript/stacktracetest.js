@@ -0,0 +1,72 @@
+// filtering and collapsing of failure stack traces
+
+importClass(Packages.com.joelhockey.jairusunit.JairusUnitStackTrace);
+
+// throwable with given frames, each [class, method, line]
+function throwable(frames) {
+    var trace = java.lang.reflect.Array.newInstance(java.lang.StackTraceElement, frames.length);
+    for (var i = 0; i < frames.length; i++) {
+        trace[i] = new java.lang.StackTraceElement(frames[i][0], frames[i][1], "Test.java", frames[i][2]);
+    }
+    var t = new java.lang.RuntimeException("boom");
+    t.setStackTrace(trace);
+    return t;
+}
+
+function lines(t) {
+    return String(new JairusUnitStackTrace(t)).split("\n");
+}
+
+function testFiltered() {
+    assertDeepEquals([
+        "java.lang.RuntimeException: boom",
+        "\tat a.Test.top(Test.java:1)",
+        "\tat a.Test.bottom(Test.java:2)",
+        ""
+    ], lines(throwable([
+        ["a.Test", "top", 1],
+        ["junit.framework.TestCase", "runTest", 10],
+        ["org.mozilla.javascript.ScriptRuntime", "call", 20],
+        ["a.Test", "bottom", 2]
+    ])));
+}
+
+function testRecursionCollapsed() {
+    var frames = [["a.Test", "top", 1]];
+    for (var i = 0; i < 10; i++) {
+        frames.push(["a.Test", "even", 2]);
+        frames.push(["a.Test", "odd", 3]);
+    }
+    frames.push(["a.Test", "bottom", 4]);
+    assertDeepEquals([
+        "java.lang.RuntimeException: boom",
+        "\tat a.Test.top(Test.java:1)",
+        "\tat a.Test.even(Test.java:2)",
+        "\tat a.Test.odd(Test.java:3)",
+        "\t... 2 frames repeated 9 more times",
+        "\tat a.Test.bottom(Test.java:4)",
+        ""
+    ], lines(throwable(frames)));
+}
+
+function testShortRepeatNotCollapsed() {
+    assertEquals(5, lines(throwable([
+        ["a.Test", "f", 1],
+        ["a.Test", "f", 1],
+        ["a.Test", "g", 2]
+    ])).length);
+}
+
+function testCause() {
+    var cause = throwable([["a.Test", "inner", 1], ["a.Test", "outer", 2]]);
+    var t = new java.lang.RuntimeException("wrapper", cause);
+    t.setStackTrace(throwable([["a.Test", "outer", 2]]).getStackTrace());
+    assertDeepEquals([
+        "java.lang.RuntimeException: wrapper",
+        "\tat a.Test.outer(Test.java:2)",
+        "Caused by: java.lang.RuntimeException: boom",
+        "\tat a.Test.inner(Test.java:1)",
+        "\t... 1 more",
+        ""
+    ], lines(t));
+}